@@ -6,6 +6,7 @@ import org.bouncycastle.math.ec.ECPoint;
 import org.bouncycastle.pqc.math.linearalgebra.IntegerFunctions;
 import org.bouncycastle.util.BigIntegers;
 import org.bouncycastle.util.encoders.Hex;
+import org.levk.udp2p.network.peers.NodeId;
 
 import java.math.BigInteger;
 import java.security.SecureRandom;
@@ -45,6 +46,10 @@ public class SchnorrKey {
         return blake2omit12(getPubkey());
     }
 
+    public NodeId getNodeId() {
+        return new NodeId(getAddress());
+    }
+
     public byte[] getPubkey() {
         return pubkeybytes;
     }
@@ -0,0 +1,75 @@
+package org.levk.udp2p.network;
+
+import org.levk.udp2p.network.peers.Peer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/* What INVs (16) have said about one message: its set size,
+ * its range hashes as pages of them arrive, & who announced
+ * it. Once every range hash is in, the message can be swarm
+ * fetched from those holders. The first hash given for a
+ * range is kept, & pages that contradict it are ignored. */
+class Announcement {
+    /* Most holders kept per message */
+    static final int MAX_HOLDERS = 16;
+
+    private final byte[] messageHash;
+    private final int setSize;
+    private final byte[][] rangeHashes;
+    private final List<Peer> holders;
+    private int known;
+
+    Announcement(byte[] messageHash, int setSize) {
+        if (setSize < 1 || setSize > PacketSet.MAX_SET_SIZE) throw new RuntimeException("Set size " + setSize + " is out of range.");
+
+        this.messageHash = messageHash;
+        this.setSize = setSize;
+        this.rangeHashes = new byte[SwarmFetch.rangeCount(setSize)][];
+        this.holders = new ArrayList<>();
+    }
+
+    /* Takes a page of range hashes from an INV entry for this
+     * message, & its announcer as a holder. False if the entry
+     * doesn't fit what was announced before. */
+    synchronized boolean add(Inventory inv, Peer from) {
+        if (!Arrays.equals(inv.getMessageHash(), messageHash) || inv.getSetSize() != setSize) return false;
+
+        List<byte[]> page = inv.getRangeHashes();
+        int first = inv.getFirstRange();
+        if (first < 0 || first > rangeHashes.length - page.size()) return false;
+
+        for (int i = 0; i < page.size(); i++) {
+            byte[] had = rangeHashes[first + i];
+            if (had != null && !Arrays.equals(had, page.get(i))) return false;
+        }
+
+        for (int i = 0; i < page.size(); i++) {
+            if (rangeHashes[first + i] == null) {
+                rangeHashes[first + i] = page.get(i);
+                known++;
+            }
+        }
+
+        if (holders.size() < MAX_HOLDERS && !holders.contains(from)) holders.add(from);
+        return true;
+    }
+
+    synchronized boolean isComplete() {
+        return known == rangeHashes.length;
+    }
+
+    int getSetSize() {
+        return setSize;
+    }
+
+    synchronized List<byte[]> getRangeHashes() {
+        if (!isComplete()) throw new RuntimeException("Not every range hash has been announced.");
+        return Arrays.asList(rangeHashes.clone());
+    }
+
+    synchronized List<Peer> getHolders() {
+        return new ArrayList<>(holders);
+    }
+}
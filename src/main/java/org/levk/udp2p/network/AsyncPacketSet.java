@@ -0,0 +1,90 @@
+package org.levk.udp2p.network;
+
+import org.levk.udp2p.crypto.SchnorrKey;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.levk.udp2p.util.HashUtil.blake2ECC;
+
+/* Builds a PacketSet by partitioning, encoding & signing
+ * every chunk as its own task. Each packet is exposed as
+ * a future as soon as it is signed, so callers can start
+ * sending the first chunks while the rest are still
+ * being worked on. */
+public class AsyncPacketSet {
+    private final List<CompletableFuture<Packet>> packets;
+    private final CompletableFuture<PacketSet> set;
+
+    public AsyncPacketSet(int packetType, byte[] data, int networkId, SchnorrKey key) {
+        this(packetType, new byte[20], data, networkId, key, ForkJoinPool.commonPool());
+    }
+
+    public AsyncPacketSet(int packetType, byte[] target, byte[] data, int networkId, SchnorrKey key) {
+        this(packetType, target, data, networkId, key, ForkJoinPool.commonPool());
+    }
+
+    public AsyncPacketSet(int packetType, byte[] target, byte[] data, int networkId, SchnorrKey key, Executor executor) {
+        this(packetType, target, data, networkId, key, executor, false);
+    }
+
+    /* compress as for PacketSet: only for peers that
+     * advertised Peer.CAP_COMPRESSION */
+    public AsyncPacketSet(int packetType, byte[] target, byte[] data, int networkId, SchnorrKey key, Executor executor, boolean compress) {
+        byte[] messageHash = blake2ECC(data);
+
+        PayloadCompression.Packed packed = compress ? PayloadCompression.pack(data, networkId) : null;
+        final int flags = (packed != null) ? packed.getFlags() : 0;
+        final byte[] body = (packed != null) ? packed.getBody() : data;
+
+        int setSize = (int)Math.ceil((double)body.length / (double)PacketSet.MAX_PACKET_PAYLOAD);
+
+        List<CompletableFuture<Packet>> temp = new ArrayList<>(setSize);
+
+        for (int i = 0; i < setSize; i++) {
+            final int index = i;
+
+            temp.add(CompletableFuture.supplyAsync(() -> {
+                /* Each task copies out only its own chunk */
+                int from = PacketSet.MAX_PACKET_PAYLOAD * index;
+                int to = Math.min(from + PacketSet.MAX_PACKET_PAYLOAD, body.length);
+                byte[] chunk = Arrays.copyOfRange(body, from, to);
+
+                Packet p = new Packet(index, setSize, PacketSet.randomByte(), target, packetType, chunk, messageHash, networkId, key, Packet.WIRE_TRENC, flags);
+                p.getEncoded();
+                return p;
+            }, executor));
+        }
+
+        this.packets = Collections.unmodifiableList(temp);
+
+        this.set = CompletableFuture.allOf(temp.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            Packet[] out = new Packet[setSize];
+
+            for (int i = 0; i < setSize; i++) {
+                out[i] = temp.get(i).join();
+            }
+
+            return new PacketSet(packetType, out);
+        });
+    }
+
+    /* Futures for every packet, in setIndex order */
+    public List<CompletableFuture<Packet>> getPackets() {
+        return packets;
+    }
+
+    /* Completes once every packet has been signed */
+    public CompletableFuture<PacketSet> getSet() {
+        return set;
+    }
+
+    public int size() {
+        return packets.size();
+    }
+}
@@ -0,0 +1,153 @@
+package org.levk.udp2p.network;
+
+import org.levk.udp2p.network.peers.NodeId;
+import org.levk.udp2p.network.peers.Peer;
+import org.levk.udp2p.serialization.TRENCSchema;
+import org.levk.udp2p.serialization.TRENCWriter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/* Nagle style batching of small messages. Messages to the
+ * same peer are held for up to flushDelay ms & then sent
+ * together in one signed container packet (13), so they
+ * share one header & signature. A batch is also sent as
+ * soon as the next message would push it past the peer's
+ * largest payload.
+ *
+ * Container payload: a TRENC list of [type, payload] lists */
+class Coalescer {
+    private static final TRENCSchema<Entry> ENTRY = TRENCSchema.builder(Entry::new)
+            .int32("type", e -> e.type, (e, v) -> e.type = v)
+            .bytes("payload", e -> e.payload, (e, v) -> e.payload = v)
+            .build();
+
+    private final long flushDelay;
+
+    /* In the order batches were opened */
+    private final Map<NodeId, Batch> pending;
+
+    Coalescer(long flushDelay) {
+        this.flushDelay = flushDelay;
+        this.pending = new LinkedHashMap<>();
+    }
+
+    /* Whether a message is small enough to be batched at all */
+    static boolean fits(int type, byte[] payload, int maxPayload) {
+        return TRENCWriter.listHeaderLength(1) + entryLength(type, payload) <= maxPayload;
+    }
+
+    /* Queues a message. Returns the batch it displaced when it
+     * didn't fit, which should be sent right away, or null. */
+    synchronized Batch add(Peer peer, int type, byte[] payload, int maxPayload) {
+        NodeId id = peer.getNodeId();
+        Batch batch = pending.get(id);
+        Batch full = null;
+
+        if (batch != null && !batch.fits(type, payload)) {
+            full = pending.remove(id);
+            batch = null;
+        }
+
+        if (batch == null) {
+            batch = new Batch(peer, maxPayload);
+            pending.put(id, batch);
+        }
+
+        batch.add(type, payload);
+        return full;
+    }
+
+    /* Detaches every batch that has waited flushDelay ms */
+    synchronized List<Batch> due() {
+        List<Batch> out = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        Iterator<Batch> it = pending.values().iterator();
+        while (it.hasNext()) {
+            Batch b = it.next();
+            if (now - b.opened >= flushDelay) {
+                out.add(b);
+                it.remove();
+            }
+        }
+
+        return out;
+    }
+
+    /* The messages in a received container payload */
+    static List<Entry> unpack(byte[] payload) {
+        return ENTRY.decodeList(payload);
+    }
+
+    private static int entryLength(int type, byte[] payload) {
+        return TRENCWriter.elementLength(TRENCWriter.listHeaderLength(2) + TRENCWriter.elementLength(4) + TRENCWriter.elementLength(payload));
+    }
+
+    static class Entry {
+        private int type;
+        private byte[] payload;
+
+        private Entry() {
+        }
+
+        private Entry(int type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        int getType() {
+            return type;
+        }
+
+        byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    static class Batch {
+        private final Peer peer;
+        private final int maxPayload;
+        private final long opened;
+        private final List<Entry> entries;
+
+        /* Sum of the entries' encoded lengths */
+        private int length;
+
+        private Batch(Peer peer, int maxPayload) {
+            this.peer = peer;
+            this.maxPayload = maxPayload;
+            this.opened = System.currentTimeMillis();
+            this.entries = new ArrayList<>();
+        }
+
+        private boolean fits(int type, byte[] payload) {
+            return TRENCWriter.listHeaderLength(entries.size() + 1) + length + entryLength(type, payload) <= maxPayload;
+        }
+
+        private void add(int type, byte[] payload) {
+            entries.add(new Entry(type, payload));
+            length += entryLength(type, payload);
+        }
+
+        Peer getPeer() {
+            return peer;
+        }
+
+        int size() {
+            return entries.size();
+        }
+
+        Entry get(int i) {
+            return entries.get(i);
+        }
+
+        /* The container payload */
+        byte[] encode() {
+            return ENTRY.encodeList(entries);
+        }
+    }
+}
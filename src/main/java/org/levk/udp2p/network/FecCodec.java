@@ -0,0 +1,167 @@
+package org.levk.udp2p.network;
+
+import org.levk.udp2p.util.ReedSolomon;
+
+import java.nio.ByteBuffer;
+
+/* Lays a message out as Reed-Solomon coded packets.
+ *
+ * The message is prefixed with its 4 byte length & cut into
+ * equal sized data shards. Shards are grouped into blocks of
+ * at most blockData data shards, each followed by `parity`
+ * repair shards, in setIndex order. Any blockData packets of
+ * a block are enough to rebuild it.
+ *
+ * Every payload starts with a 6 byte header so the layout can
+ * be recovered from whichever packet arrives first:
+ * [blockData (1)][parity (1)][total data shards (4)] */
+class FecCodec {
+    static final int HEADER_LENGTH = 6;
+
+    private final int blockData;
+    private final int parity;
+    private final int dataShards;
+
+    private FecCodec(int blockData, int parity, int dataShards) {
+        if (blockData < 1 || parity < 1 || blockData + parity > ReedSolomon.MAX_SHARDS) throw new RuntimeException("Invalid FEC block layout.");
+        if (dataShards < 1) throw new RuntimeException("FEC needs at least one data shard.");
+
+        this.blockData = blockData;
+        this.parity = parity;
+        this.dataShards = dataShards;
+    }
+
+    /* Layout for a message of the given length, in
+     * packets carrying at most maxPayload bytes */
+    static FecCodec forMessage(int length, int parity, int maxPayload) {
+        int maxShardLength = maxPayload - HEADER_LENGTH;
+        int framed = length + 4;
+        int shards = (framed + maxShardLength - 1) / maxShardLength;
+
+        return new FecCodec(Math.min(shards, ReedSolomon.MAX_SHARDS - parity), parity, shards);
+    }
+
+    /* Layout as described by a received payload's header */
+    static FecCodec fromPayload(byte[] payload) {
+        if (payload.length <= HEADER_LENGTH) throw new RuntimeException("FEC payload shorter than its header.");
+
+        ByteBuffer in = ByteBuffer.wrap(payload);
+        return new FecCodec(in.get(0) & 0xFF, in.get(1) & 0xFF, in.getInt(2));
+    }
+
+    int getSetSize() {
+        return dataShards + blockCount() * parity;
+    }
+
+    int blockCount() {
+        return (dataShards + blockData - 1) / blockData;
+    }
+
+    int blockOf(int setIndex) {
+        return setIndex / (blockData + parity);
+    }
+
+    /* Data shards in block b; only the last block can be short */
+    int blockDataCount(int b) {
+        return Math.min(blockData, dataShards - b * blockData);
+    }
+
+    /* Payloads for every packet, in setIndex order */
+    byte[][] encode(byte[] body) {
+        int framed = body.length + 4;
+        int shardLength = (framed + dataShards - 1) / dataShards;
+
+        /* Length prefixed & zero padded to whole shards */
+        byte[] message = new byte[dataShards * shardLength];
+        ByteBuffer.wrap(message).putInt(body.length);
+        System.arraycopy(body, 0, message, 4, body.length);
+
+        byte[][] out = new byte[getSetSize()][];
+        int setIndex = 0;
+
+        for (int b = 0; b < blockCount(); b++) {
+            int count = blockDataCount(b);
+            byte[][] shards = new byte[count + parity][];
+
+            for (int i = 0; i < count; i++) {
+                shards[i] = new byte[shardLength];
+                System.arraycopy(message, (b * blockData + i) * shardLength, shards[i], 0, shardLength);
+            }
+
+            for (int i = count; i < count + parity; i++) {
+                shards[i] = new byte[shardLength];
+            }
+
+            new ReedSolomon(count, parity).encodeParity(shards, shardLength);
+
+            for (byte[] shard : shards) {
+                out[setIndex++] = withHeader(shard);
+            }
+        }
+
+        return out;
+    }
+
+    /* Rebuilds the message from whichever packets arrived.
+     * Each block needs blockDataCount(b) packets. */
+    byte[] decode(Packet[] packets) {
+        int shardLength = -1;
+        for (Packet p : packets) {
+            if (p != null) {
+                shardLength = p.getPayloadLength() - HEADER_LENGTH;
+                break;
+            }
+        }
+
+        if (shardLength < 1) throw new RuntimeException("No FEC packets to decode.");
+
+        byte[] message = new byte[dataShards * shardLength];
+        int setIndex = 0;
+
+        for (int b = 0; b < blockCount(); b++) {
+            int count = blockDataCount(b);
+            byte[][] shards = new byte[count + parity][];
+            boolean[] present = new boolean[count + parity];
+
+            for (int i = 0; i < count + parity; i++) {
+                Packet p = packets[setIndex++];
+
+                if (p != null) {
+                    if (p.getPayloadLength() != shardLength + HEADER_LENGTH) throw new RuntimeException("FEC shards differ in length.");
+
+                    byte[] payload = p.getPayload();
+                    shards[i] = new byte[shardLength];
+                    System.arraycopy(payload, HEADER_LENGTH, shards[i], 0, shardLength);
+                    present[i] = true;
+                } else {
+                    shards[i] = new byte[shardLength];
+                }
+            }
+
+            new ReedSolomon(count, parity).reconstruct(shards, present, shardLength);
+
+            for (int i = 0; i < count; i++) {
+                System.arraycopy(shards[i], 0, message, (b * blockData + i) * shardLength, shardLength);
+            }
+        }
+
+        int length = ByteBuffer.wrap(message).getInt();
+        if (length < 0 || length > message.length - 4) throw new RuntimeException("FEC message length is corrupt.");
+
+        byte[] body = new byte[length];
+        System.arraycopy(message, 4, body, 0, length);
+        return body;
+    }
+
+    private byte[] withHeader(byte[] shard) {
+        byte[] out = new byte[HEADER_LENGTH + shard.length];
+
+        ByteBuffer header = ByteBuffer.wrap(out);
+        header.put((byte)blockData);
+        header.put((byte)parity);
+        header.putInt(dataShards);
+
+        System.arraycopy(shard, 0, out, HEADER_LENGTH, shard.length);
+        return out;
+    }
+}
@@ -0,0 +1,96 @@
+package org.levk.udp2p.network;
+
+import org.levk.udp2p.serialization.TRENCSchema;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/* One entry of an INV (16) or GETDATA (17): a message
+ * named by its messageHash, with its type & set size
+ * so receivers can judge whether to pull it. INV entries
+ * also carry a page of the message's range hashes, from
+ * range firstRange on, so it can be swarm fetched; a
+ * message with more ranges than fit one page is announced
+ * in several entries. GETDATA entries leave them empty. */
+class Inventory {
+    static final TRENCSchema<Inventory> SCHEMA = TRENCSchema.builder(Inventory::new)
+            .fixedBytes("messageHash", 4, i -> i.messageHash, (i, v) -> i.messageHash = v)
+            .int32("packetType", i -> i.packetType, (i, v) -> i.packetType = v)
+            .int32("setSize", i -> i.setSize, (i, v) -> i.setSize = v)
+            .int32("firstRange", i -> i.firstRange, (i, v) -> i.firstRange = v)
+            .bytes("rangeHashes", i -> i.rangeHashes, (i, v) -> i.rangeHashes = v)
+            .build();
+
+    /* Range hashes per entry, so an INV fits the smallest datagram */
+    static final int RANGES_PER_PAGE = 16;
+
+    private byte[] messageHash;
+    private int packetType;
+    private int setSize;
+    private int firstRange;
+    private byte[] rangeHashes;
+
+    private Inventory() {
+    }
+
+    Inventory(byte[] messageHash, int packetType, int setSize) {
+        this(messageHash, packetType, setSize, 0, new byte[0]);
+    }
+
+    Inventory(byte[] messageHash, int packetType, int setSize, int firstRange, byte[] rangeHashes) {
+        this.messageHash = messageHash;
+        this.packetType = packetType;
+        this.setSize = setSize;
+        this.firstRange = firstRange;
+        this.rangeHashes = rangeHashes;
+    }
+
+    /* The INV entries announcing a complete set, one page
+     * of its range hashes each */
+    static List<Inventory> announcing(PacketSet set) {
+        List<byte[]> hashes = SwarmFetch.rangeHashes(set);
+        List<Inventory> out = new ArrayList<>();
+
+        for (int from = 0; from < hashes.size(); from += RANGES_PER_PAGE) {
+            int to = Math.min(from + RANGES_PER_PAGE, hashes.size());
+
+            byte[] page = new byte[(to - from) * SwarmFetch.RANGE_HASH_LENGTH];
+            for (int i = from; i < to; i++) {
+                System.arraycopy(hashes.get(i), 0, page, (i - from) * SwarmFetch.RANGE_HASH_LENGTH, SwarmFetch.RANGE_HASH_LENGTH);
+            }
+
+            out.add(new Inventory(set.getMessageHash(), set.getSetType(), set.getPackets().size(), from, page));
+        }
+
+        return out;
+    }
+
+    byte[] getMessageHash() {
+        return messageHash;
+    }
+
+    int getPacketType() {
+        return packetType;
+    }
+
+    int getSetSize() {
+        return setSize;
+    }
+
+    int getFirstRange() {
+        return firstRange;
+    }
+
+    /* This entry's range hashes, in order from getFirstRange() */
+    List<byte[]> getRangeHashes() {
+        if (rangeHashes.length % SwarmFetch.RANGE_HASH_LENGTH != 0) throw new RuntimeException("Range hashes must be " + SwarmFetch.RANGE_HASH_LENGTH + " bytes each.");
+
+        List<byte[]> out = new ArrayList<>();
+        for (int off = 0; off < rangeHashes.length; off += SwarmFetch.RANGE_HASH_LENGTH) {
+            out.add(Arrays.copyOfRange(rangeHashes, off, off + SwarmFetch.RANGE_HASH_LENGTH));
+        }
+
+        return out;
+    }
+}
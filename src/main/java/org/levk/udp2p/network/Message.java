@@ -8,6 +8,12 @@ public class Message {
     private Peer target;
     private Packet message;
 
+    /* When it started awaiting an ack, when it last went
+     * out & how long to wait for the ack before resending */
+    private long awaitingSince;
+    private long lastSent;
+    private long retransmitTimeout;
+
     public Message(Peer target, Packet message) {
         this.target = target;
         this.message = message;
@@ -21,6 +27,30 @@ public class Message {
         return message;
     }
 
+    long getAwaitingSince() {
+        return awaitingSince;
+    }
+
+    void setAwaitingSince(long awaitingSince) {
+        this.awaitingSince = awaitingSince;
+    }
+
+    long getLastSent() {
+        return lastSent;
+    }
+
+    void setLastSent(long lastSent) {
+        this.lastSent = lastSent;
+    }
+
+    long getRetransmitTimeout() {
+        return retransmitTimeout;
+    }
+
+    void setRetransmitTimeout(long retransmitTimeout) {
+        this.retransmitTimeout = retransmitTimeout;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (!(o instanceof  Message)) {
@@ -0,0 +1,59 @@
+package org.levk.udp2p.network;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* Recently seen complete messages, by messageHash, for
+ * serving GETDATA (17). Bounded both in entries & in the
+ * total size of the held encodings; the least recently
+ * used messages are evicted first. */
+class MessageCache {
+    private final int maxEntries;
+    private final long maxBytes;
+
+    private final LinkedHashMap<ByteBuffer, PacketSet> sets;
+    private long bytes;
+
+    MessageCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.sets = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /* False if the set is too large to ever be cached */
+    synchronized boolean put(PacketSet set) {
+        long size = sizeOf(set);
+        if (size > maxBytes) return false;
+
+        PacketSet old = sets.put(ByteBuffer.wrap(set.getMessageHash()), set);
+        if (old != null) bytes -= sizeOf(old);
+        bytes += size;
+
+        Iterator<Map.Entry<ByteBuffer, PacketSet>> it = sets.entrySet().iterator();
+        while ((bytes > maxBytes || sets.size() > maxEntries) && it.hasNext()) {
+            bytes -= sizeOf(it.next().getValue());
+            it.remove();
+        }
+
+        return true;
+    }
+
+    synchronized PacketSet get(byte[] messageHash) {
+        return sets.get(ByteBuffer.wrap(messageHash));
+    }
+
+    synchronized boolean contains(byte[] messageHash) {
+        return sets.containsKey(ByteBuffer.wrap(messageHash));
+    }
+
+    private static long sizeOf(PacketSet set) {
+        long size = 0;
+        for (Packet p : set.getPackets()) {
+            if (p != null) size += p.getEncoded().length;
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,478 @@
+package org.levk.udp2p.network;
+
+import org.levk.udp2p.crypto.SchnorrKey;
+import org.levk.udp2p.network.peers.NodeId;
+import org.levk.udp2p.network.peers.Peer;
+import org.levk.udp2p.util.HashUtil;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/* Checks of packet sets & the compact wire format. Prints
+ * each check & throws on the first that fails. */
+public class NetworkTests {
+    public static void main(String[] args) throws Exception {
+        SchnorrKey key = new SchnorrKey();
+        Random rand = new Random(1);
+
+        compactRoundTrip(key, rand);
+        targets(key);
+        compression(key, rand);
+        streams(key, rand);
+        spilling(key, rand);
+        fecRecovery(key, rand);
+        pathMtu(key, rand);
+        coalescing(rand);
+        swarm(key, rand);
+    }
+
+    /* Compact packets parse back to the same fields, survive
+     * forwarding & re-encoding, & reassemble to the message */
+    private static void compactRoundTrip(SchnorrKey key, Random rand) throws Exception {
+        byte[] data = new byte[20000];
+        rand.nextBytes(data);
+
+        byte[] target = new byte[20];
+        rand.nextBytes(target);
+
+        List<Packet> packets = new PacketSet(21, target, data, 9, key, 0, Packet.WIRE_COMPACT, 1200).getPackets();
+
+        PacketSet out = null;
+        boolean fields = true;
+        boolean forwarded = true;
+        boolean reencoded = true;
+
+        for (Packet p : packets) {
+            Packet q = new Packet(p.getEncoded());
+
+            fields &= q.getWireFormat() == Packet.WIRE_COMPACT
+                    && q.checkSig()
+                    && q.getSetIndex() == p.getSetIndex()
+                    && q.getSetSize() == packets.size()
+                    && q.getPacketType() == 21
+                    && q.getNetworkId() == 9
+                    && Arrays.equals(q.getTarget(), target)
+                    && Arrays.equals(q.getMessageHash(), p.getMessageHash())
+                    && Arrays.equals(q.getPayload(), p.getPayload())
+                    && Arrays.equals(q.getHash(), p.getHash());
+
+            Packet f = new Packet(q.forwarded().getEncoded());
+            forwarded &= f.getHops() == 1 && f.checkSig() && Arrays.equals(f.getHash(), p.getHash());
+
+            Packet t = new Packet(q.reencode(Packet.WIRE_TRENC, key).getEncoded());
+            reencoded &= t.getWireFormat() == Packet.WIRE_TRENC && t.checkSig() && Arrays.equals(t.getPayload(), p.getPayload());
+
+            if (out == null) {
+                out = new PacketSet(q);
+            } else {
+                out.add(q);
+            }
+        }
+
+        check(fields, packets.size() + " compact packets parse back to the same fields");
+        check(forwarded, "forwarded compact packets keep their hash & signature");
+        check(reencoded, "compact packets re-encode to TRENC");
+        check(out.isComplete() && Arrays.equals(out.getData(), data), "compact packets reassemble to the message");
+    }
+
+    /* Targets are exactly 20 bytes, so routing never
+     * sees one it can't make a NodeId of */
+    private static void targets(SchnorrKey key) {
+        byte[] payload = new byte[10];
+        Packet whole = new Packet(0, 1, (byte)1, new byte[20], Packet.FIRST_APP_TYPE, payload, HashUtil.blake2ECC(payload), 7, key);
+        Packet shortTarget = new Packet(0, 1, (byte)1, new byte[5], Packet.FIRST_APP_TYPE, payload, HashUtil.blake2ECC(payload), 7, key);
+
+        check(!rejects(() -> new Packet(whole.getEncoded()).parse()), "a 20 byte target parses");
+        check(rejects(() -> new Packet(shortTarget.getEncoded()).parse()), "a 5 byte target is refused on parsing");
+    }
+
+    /* Compressible messages shrink & come back intact, through
+     * Snappy on either side of the direct buffer cap & through
+     * a dictionary; random ones & sets not asked to are left raw */
+    private static void compression(SchnorrKey key, Random rand) throws Exception {
+        boolean packed = true;
+        for (int length : new int[]{600, 5000, (1 << 16) - 1, 1 << 16, (1 << 16) + 1, 300000}) {
+            byte[] data = compressible(length, rand);
+
+            PayloadCompression.Packed p = PayloadCompression.pack(data, 7);
+            packed &= p.getFlags() == Packet.FLAG_SNAPPY
+                    && p.getBody().length < data.length
+                    && Arrays.equals(PayloadCompression.decompress(p.getBody(), p.getFlags(), 7), data);
+        }
+        check(packed, "compressible messages shrink & decompress intact around the buffer cap");
+
+        PayloadCompression.registerDictionary(8, compressible(4000, rand));
+        try {
+            byte[] data = compressible(20000, rand);
+            PayloadCompression.Packed p = PayloadCompression.pack(data, 8);
+            check(p.getFlags() == Packet.FLAG_DICTIONARY && Arrays.equals(PayloadCompression.decompress(p.getBody(), p.getFlags(), 8), data), "messages of a network with a dictionary deflate with it");
+        } finally {
+            PayloadCompression.removeDictionary(8);
+        }
+
+        byte[] random = new byte[20000];
+        rand.nextBytes(random);
+        PayloadCompression.Packed raw = PayloadCompression.pack(random, 7);
+        check(raw.getFlags() == 0 && raw.getBody() == random, "random messages are sent raw");
+
+        byte[] data = compressible(200000, rand);
+        List<Packet> compressed = new PacketSet(20, new byte[20], data, 7, key, 0, Packet.WIRE_COMPACT, 1200, true).getPackets();
+        List<Packet> plain = new PacketSet(20, new byte[20], data, 7, key, 0, Packet.WIRE_COMPACT, 1200).getPackets();
+
+        PacketSet out = reassemble(compressed, new ArrayList<>());
+        check(compressed.get(0).getFlags() == Packet.FLAG_SNAPPY && compressed.size() < plain.size() && Arrays.equals(out.getData(), data), "compressed sets take fewer packets & reassemble intact");
+        check(plain.get(0).getFlags() == 0, "sets aren't compressed unless asked to");
+    }
+
+    /* Words from a small vocabulary, as text-like messages are */
+    private static byte[] compressible(int length, Random rand) {
+        String[] words = {"peer", "node", "packet", "bucket", "message", "hash", "route", "the", "a", "of"};
+        StringBuilder out = new StringBuilder(length + 16);
+        while (out.length() < length) {
+            out.append(words[rand.nextInt(words.length)]).append(' ');
+        }
+
+        return out.substring(0, length).getBytes();
+    }
+
+    /* Streams from a channel, a region & an InputStream cut the
+     * same message hash & set size as a PacketSet, rebuild any
+     * packet on demand & reassemble to the message */
+    private static void streams(SchnorrKey key, Random rand) throws Exception {
+        for (int length : new int[]{1, 50000, 3 * PacketSet.MAX_PACKET_PAYLOAD}) {
+            byte[] data = new byte[length];
+            rand.nextBytes(data);
+
+            PacketSet whole = new PacketSet(20, new byte[20], data, 7, key);
+
+            Path file = Files.createTempFile("udp2p", ".tmp");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(data));
+                channel.position(5);
+
+                check(streamMatches(PacketStream.of(20, new byte[20], channel, 7, key), whole, data) && channel.position() == 5, length + " bytes streamed from a channel, its position untouched");
+            } finally {
+                Files.deleteIfExists(file);
+            }
+
+            check(streamMatches(PacketStream.of(20, new byte[20], ByteBuffer.wrap(data), 7, key), whole, data), length + " bytes streamed from a region");
+            check(streamMatches(PacketStream.of(20, new byte[20], new ByteArrayInputStream(data), 7, key), whole, data), length + " bytes streamed from an InputStream");
+        }
+    }
+
+    /* Large sets reassemble on disk in any order, & remote set
+     * sizes past the limits are refused before allocating */
+    private static void spilling(SchnorrKey key, Random rand) throws Exception {
+        byte[] data = new byte[50 * PacketSet.MAX_PACKET_PAYLOAD - 1];
+        rand.nextBytes(data);
+
+        List<Packet> packets = new ArrayList<>();
+        PacketStream stream = PacketStream.of(20, new byte[20], ByteBuffer.wrap(data), 7, key);
+        while (stream.hasNext()) {
+            packets.add(new Packet(stream.next().getEncoded()));
+        }
+        Collections.reverse(packets);
+
+        PacketSet set = null;
+        for (Packet p : packets) {
+            if (set == null) {
+                set = new PacketSet(p, 1000);
+            } else {
+                set.add(p);
+            }
+        }
+
+        try {
+            MappedByteBuffer mapped = set.getMappedData();
+            byte[] out = new byte[mapped.remaining()];
+            mapped.get(out);
+
+            check(set.isSpilled() && set.isComplete() && set.getLength() == data.length, "a set received last chunk first completes on disk");
+            check(Arrays.equals(set.getData(), data) && Arrays.equals(out, data) && set.getChannel().size() == data.length, "the spilled message reads back whole & trimmed");
+        } finally {
+            set.close();
+        }
+
+        byte[] payload = new byte[8000];
+        Packet huge = new Packet(0, Integer.MAX_VALUE, (byte)1, new byte[20], Packet.FIRST_APP_TYPE, payload, HashUtil.blake2ECC(payload), 7, key);
+        check(rejects(() -> new PacketSet(new Packet(huge.getEncoded()))), "a set size over the limit is refused");
+
+        Packet wide = new Packet(0, PacketSet.MAX_SET_SIZE, (byte)1, new byte[20], Packet.FIRST_APP_TYPE, payload, HashUtil.blake2ECC(payload), 7, key);
+        check(rejects(() -> new PacketSet(new Packet(wide.getEncoded()))), "a spill file over the length limit is refused");
+    }
+
+    /* Range hashes survive paging through INVs, & a swarm fetch
+     * throws away a forged range & finishes from honest holders */
+    private static void swarm(SchnorrKey key, Random rand) throws Exception {
+        byte[] data = new byte[1000 * PacketSet.MAX_PACKET_PAYLOAD];
+        rand.nextBytes(data);
+
+        PacketSet set = new PacketSet(Packet.FIRST_APP_TYPE, new byte[20], data, 7, key);
+        List<Packet> packets = set.getPackets();
+        List<byte[]> hashes = SwarmFetch.rangeHashes(set);
+
+        Peer honest = new Peer(new byte[20], new byte[]{10, 0, 1, 1});
+        Peer forger = new Peer(new byte[20], new byte[]{10, 0, 1, 2});
+
+        List<Inventory> pages = Inventory.announcing(set);
+        Announcement announced = new Announcement(set.getMessageHash(), packets.size());
+        boolean fits = true;
+        boolean applied = true;
+        for (Inventory inv : pages) {
+            byte[] payload = Inventory.SCHEMA.encodeList(Collections.singletonList(inv));
+            fits &= payload.length <= Packet.maxPayload(Peer.DEFAULT_DATAGRAM - Packet.MAX_TRAILER_LENGTH, Packet.WIRE_TRENC);
+
+            applied &= !announced.isComplete() && announced.add(Inventory.SCHEMA.decodeList(payload).get(0), honest);
+        }
+        check(fits, "every page of range hashes fits an INV in the smallest datagram");
+
+        boolean same = applied && announced.isComplete() && pages.size() > 1 && announced.getRangeHashes().size() == hashes.size();
+        for (int i = 0; same && i < hashes.size(); i++) {
+            same = Arrays.equals(announced.getRangeHashes().get(i), hashes.get(i));
+        }
+        check(same, hashes.size() + " range hashes come back from " + pages.size() + " INV pages");
+
+        byte[] forged = pages.get(0).getRangeHashes().get(0).clone();
+        forged[0] ^= 1;
+        check(!announced.add(new Inventory(set.getMessageHash(), set.getSetType(), packets.size(), 0, forged), forger), "a page contradicting the announced hashes is ignored");
+
+        SwarmFetch fetch = new SwarmFetch(set.getMessageHash(), packets.size(), announced.getRangeHashes(), Arrays.asList(honest, forger));
+        SchnorrKey forgerKey = new SchnorrKey();
+        PacketSet done = null;
+        int forgedSent = 0;
+
+        for (int round = 0; round < 1000 && done == null; round++) {
+            for (SwarmFetch.Request r : fetch.tick()) {
+                for (int i = r.getFrom(); i < r.getFrom() + r.getCount() && done == null; i++) {
+                    Packet p = packets.get(i);
+
+                    if (r.getPeer() == forger) {
+                        byte[] junk = new byte[p.getPayload().length];
+                        rand.nextBytes(junk);
+                        p = new Packet(i, packets.size(), (byte)1, new byte[20], Packet.FIRST_APP_TYPE, junk, set.getMessageHash(), 7, forgerKey);
+                        forgedSent++;
+                    }
+
+                    done = fetch.add(r.getPeer().getIpAddress(), new Packet(p.getEncoded()));
+                }
+            }
+        }
+
+        check(forgedSent > 0, "the forger was asked for a range");
+        check(done != null && Arrays.equals(done.getData(), data), "the forged range is refetched & the message arrives intact");
+    }
+
+    private static boolean rejects(Runnable r) {
+        try {
+            r.run();
+            return false;
+        } catch (RuntimeException e) {
+            return true;
+        }
+    }
+
+    private static boolean streamMatches(PacketStream stream, PacketSet whole, byte[] data) throws Exception {
+        try {
+            boolean ok = Arrays.equals(stream.getMessageHash(), HashUtil.blake2ECC(data))
+                    && Arrays.equals(stream.getMessageHash(), whole.getMessageHash())
+                    && stream.getSetSize() == whole.getPackets().size()
+                    && stream.getLength() == data.length;
+
+            List<Packet> packets = new ArrayList<>();
+            while (stream.hasNext()) {
+                Packet p = new Packet(stream.next().getEncoded());
+                ok &= p.checkSig() && p.getSetIndex() == packets.size();
+                packets.add(p);
+            }
+
+            int middle = packets.size() / 2;
+            ok &= Arrays.equals(stream.get(middle).getPayload(), packets.get(middle).getPayload());
+
+            Collections.reverse(packets);
+            PacketSet out = reassemble(packets, new ArrayList<>());
+
+            return ok && out.isComplete() && Arrays.equals(out.getData(), data);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /* Any parity packets' worth of losses per block is repaired,
+     * data shards included; one more in a block isn't */
+    private static void fecRecovery(SchnorrKey key, Random rand) throws Exception {
+        int parity = 4;
+
+        for (int length : new int[]{10, 5000, 300000}) {
+            byte[] data = new byte[length];
+            rand.nextBytes(data);
+
+            List<Packet> packets = new PacketSet(20, new byte[20], data, 7, key, parity).getPackets();
+            Map<Integer, List<Integer>> blocks = blocks(packets);
+
+            List<Integer> dropped = new ArrayList<>();
+            for (List<Integer> block : blocks.values()) {
+                Collections.shuffle(block, rand);
+                dropped.addAll(block.subList(0, parity));
+            }
+
+            PacketSet repaired = reassemble(packets, dropped);
+            check(repaired.isComplete() && Arrays.equals(repaired.getData(), data), length + " bytes, " + dropped.size() + " of " + packets.size() + " packets dropped, recovered");
+
+            /* One block losing parity + 1 can't be repaired */
+            List<Integer> first = blocks.get(0);
+            PacketSet tooFew = reassemble(packets, first.subList(0, Math.min(parity + 1, first.size())));
+            check(tooFew == null || !tooFew.isComplete(), length + " bytes, " + (parity + 1) + " dropped from one block, incomplete");
+        }
+    }
+
+    /* Probes climb the sizes only up to the local interface cap,
+     * stop at the first lost one, & sets sized for a path still
+     * fit it once forwarders add their trailer */
+    private static void pathMtu(SchnorrKey key, Random rand) throws Exception {
+        Peer capped = new Peer(new byte[20], new byte[]{10, 0, 0, 1});
+        capped.capProbes(1400 - 28);
+        check(probeSizes(capped).equals(Arrays.asList(1232)), "a 1400 byte interface MTU stops probes at 1232");
+
+        Peer open = new Peer(new byte[20], new byte[]{10, 0, 0, 2});
+        open.capProbes(65536 - 28);
+        check(probeSizes(open).equals(Arrays.asList(1232, 1452, 1472, 8972)), "a loopback MTU lets every probe through");
+
+        Peer lossy = new Peer(new byte[20], new byte[]{10, 0, 0, 3});
+        lossy.capProbes(65536 - 28);
+        lossy.startProbe(P2PSocket.nextProbe(lossy));
+        lossy.confirmProbe(1232);
+        lossy.startProbe(P2PSocket.nextProbe(lossy));
+        lossy.expireProbe(-1);
+        check(lossy.getMaxDatagram() == 1232 && P2PSocket.nextProbe(lossy) == 0, "a lost probe counts as no & ends probing");
+
+        lossy.resetPath();
+        check(lossy.getMaxDatagram() == Peer.DEFAULT_DATAGRAM && P2PSocket.nextProbe(lossy) == 1232, "resetting the path starts probing over");
+
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        NetworkInterface lo = NetworkInterface.getByInetAddress(loopback);
+        if (lo != null && lo.getMTU() > 0) {
+            check(P2PSocket.localDatagramLimit(loopback) == lo.getMTU() - 28, "the cap is the routing interface's MTU less IP & UDP headers");
+        }
+
+        boolean fits = true;
+        for (int format : new int[]{Packet.WIRE_TRENC, Packet.WIRE_COMPACT}) {
+            for (int datagram : new int[]{Peer.DEFAULT_DATAGRAM, 1232, 1472, 8972}) {
+                byte[] payload = new byte[Packet.maxPayload(datagram - Packet.MAX_TRAILER_LENGTH, format)];
+                rand.nextBytes(payload);
+
+                Packet p = new Packet(0, 1, (byte)1, new byte[20], Packet.FIRST_APP_TYPE, payload, HashUtil.blake2ECC(payload), 7, key, format);
+                fits &= p.forwarded(NodeId.BITS - 1).forwarded().getEncoded().length <= datagram;
+            }
+        }
+        check(fits, "full packets with both trailer bytes fit the datagram");
+    }
+
+    /* Small messages share a container until the next one
+     * overflows it, unpack in order, & wait out the delay; the
+     * retransmit timeout follows the peer's RTT */
+    private static void coalescing(Random rand) throws Exception {
+        int maxPayload = Packet.maxPayload(Peer.DEFAULT_DATAGRAM - Packet.MAX_TRAILER_LENGTH, Packet.WIRE_TRENC);
+        Peer peer = new Peer(new byte[20], new byte[]{10, 0, 0, 4});
+        Coalescer coalescer = new Coalescer(50);
+
+        check(!Coalescer.fits(Packet.FIRST_APP_TYPE, new byte[maxPayload], maxPayload), "a full packet's payload isn't batched");
+
+        List<byte[]> sent = new ArrayList<>();
+        Coalescer.Batch full = null;
+        boolean batchable = true;
+        while (full == null) {
+            byte[] payload = new byte[1 + rand.nextInt(100)];
+            rand.nextBytes(payload);
+            batchable &= Coalescer.fits(Packet.FIRST_APP_TYPE + sent.size(), payload, maxPayload);
+
+            full = coalescer.add(peer, Packet.FIRST_APP_TYPE + sent.size(), payload, maxPayload);
+            sent.add(payload);
+        }
+        check(batchable, "small messages are batched");
+
+        byte[] encoded = full.encode();
+        List<Coalescer.Entry> entries = Coalescer.unpack(encoded);
+
+        boolean same = entries.size() == sent.size() - 1 && full.size() == entries.size() && full.getPeer() == peer;
+        for (int i = 0; same && i < entries.size(); i++) {
+            same = entries.get(i).getType() == Packet.FIRST_APP_TYPE + i && Arrays.equals(entries.get(i).getPayload(), sent.get(i));
+        }
+        check(same, "the displaced batch unpacks to every message before the overflow, in order");
+        check(encoded.length <= maxPayload, "the container fits the packet payload");
+
+        check(coalescer.due().isEmpty(), "the open batch waits out the delay");
+        Thread.sleep(60);
+        List<Coalescer.Batch> due = coalescer.due();
+        check(due.size() == 1 && due.get(0).size() == 1 && Arrays.equals(due.get(0).get(0).getPayload(), sent.get(sent.size() - 1)), "the overflowing message flushes after the delay");
+        check(coalescer.due().isEmpty(), "a flushed batch is detached");
+
+        check(P2PSocket.retransmitTimeout(peer) == 1000, "an unmeasured peer gets the initial timeout");
+        peer.restore(0, 20, 5);
+        check(P2PSocket.retransmitTimeout(peer) == 200, "a short RTT is clamped to the minimum timeout");
+        peer.restore(0, 400, 100);
+        check(P2PSocket.retransmitTimeout(peer) == 800, "the timeout is RTT plus four deviations");
+    }
+
+    /* Every size probed, each answered, until none are left */
+    private static List<Integer> probeSizes(Peer p) {
+        List<Integer> out = new ArrayList<>();
+
+        for (int size = P2PSocket.nextProbe(p); size > 0; size = P2PSocket.nextProbe(p)) {
+            p.startProbe(size);
+            p.confirmProbe(size);
+            out.add(size);
+        }
+
+        return out;
+    }
+
+    /* Set indexes grouped by FEC block */
+    private static Map<Integer, List<Integer>> blocks(List<Packet> packets) {
+        FecCodec fec = FecCodec.fromPayload(packets.get(0).getPayload());
+        Map<Integer, List<Integer>> out = new HashMap<>();
+
+        for (int i = 0; i < packets.size(); i++) {
+            out.computeIfAbsent(fec.blockOf(i), b -> new ArrayList<>()).add(i);
+        }
+
+        return out;
+    }
+
+    /* The packets as received, less the dropped indexes.
+     * Null if every one was dropped. */
+    private static PacketSet reassemble(List<Packet> packets, List<Integer> dropped) {
+        PacketSet out = null;
+
+        for (int i = 0; i < packets.size(); i++) {
+            if (dropped.contains(i)) continue;
+
+            Packet p = new Packet(packets.get(i).getEncoded());
+            if (out == null) {
+                out = new PacketSet(p);
+            } else {
+                out.add(p);
+            }
+        }
+
+        return out;
+    }
+
+    private static void check(boolean ok, String what) {
+        System.out.println((ok ? "ok     " : "FAILED ") + what);
+        if (!ok) throw new RuntimeException("Check failed: " + what);
+    }
+}
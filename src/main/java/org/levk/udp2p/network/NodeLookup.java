@@ -0,0 +1,171 @@
+package org.levk.udp2p.network;
+
+import org.levk.udp2p.network.peers.NodeId;
+import org.levk.udp2p.network.peers.Peer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/* State of one iterative Kademlia lookup for the k peers
+ * closest to a target. Candidates are kept sorted by distance.
+ * Each poll() hands out up to alpha of the closest unqueried
+ * candidates, so at most alpha FIND_NODE (14) queries are in
+ * flight. Queries unanswered after timeout ms are dropped. The
+ * lookup finishes once the k closest live candidates have all
+ * answered with NODES (15). */
+class NodeLookup {
+    private static final int NEW = 0;
+    private static final int WAITING = 1;
+    private static final int RESPONDED = 2;
+    private static final int FAILED = 3;
+
+    private final NodeId self;
+    private final NodeId target;
+    private final int k;
+    private final int alpha;
+    private final long timeout;
+
+    /* Closest first */
+    private final List<Candidate> candidates;
+    private final Map<NodeId, Candidate> byId;
+
+    private final CompletableFuture<List<Peer>> result;
+
+    NodeLookup(NodeId self, NodeId target, int k, int alpha, long timeout, List<Peer> seeds) {
+        this.self = self;
+        this.target = target;
+        this.k = k;
+        this.alpha = alpha;
+        this.timeout = timeout;
+        this.candidates = new ArrayList<>();
+        this.byId = new HashMap<>();
+        this.result = new CompletableFuture<>();
+
+        for (Peer p : seeds) {
+            offer(p);
+        }
+    }
+
+    NodeId getTarget() {
+        return target;
+    }
+
+    /* Completes with the closest peers that answered */
+    CompletableFuture<List<Peer>> getResult() {
+        return result;
+    }
+
+    /* Expires late queries & returns the peers to query next.
+     * Completes the result, & returns nothing, once done. */
+    synchronized List<Peer> poll() {
+        List<Peer> out = new ArrayList<>();
+        if (result.isDone()) return out;
+
+        long now = System.currentTimeMillis();
+        int waiting = 0;
+
+        for (Candidate c : candidates) {
+            if (c.state == WAITING) {
+                if (now - c.sent > timeout) {
+                    c.state = FAILED;
+                } else {
+                    waiting++;
+                }
+            }
+        }
+
+        if (isDone()) {
+            result.complete(closest());
+            return out;
+        }
+
+        /* Only the k closest live candidates are worth asking */
+        int live = 0;
+        for (Candidate c : candidates) {
+            if (c.state == FAILED) continue;
+            if (live++ == k || waiting >= alpha) break;
+
+            if (c.state == NEW) {
+                c.state = WAITING;
+                c.sent = now;
+                waiting++;
+                out.add(c.peer);
+            }
+        }
+
+        return out;
+    }
+
+    /* Records a NODES reply. False if from wasn't asked. */
+    synchronized boolean onReply(NodeId from, List<Peer> found) {
+        Candidate c = byId.get(from);
+        if (c == null || c.state != WAITING) return false;
+
+        c.state = RESPONDED;
+
+        for (Peer p : found) {
+            offer(p);
+        }
+
+        return true;
+    }
+
+    synchronized boolean isDone() {
+        if (result.isDone()) return true;
+
+        int live = 0;
+        for (Candidate c : candidates) {
+            if (c.state == FAILED) continue;
+            if (c.state != RESPONDED) return false;
+            if (++live == k) return true;
+        }
+
+        return true;
+    }
+
+    private void offer(Peer p) {
+        NodeId id = p.getNodeId();
+        if (id.equals(self) || byId.containsKey(id)) return;
+
+        Candidate c = new Candidate(p);
+        byId.put(id, c);
+
+        /* Binary search for the insertion point */
+        int lo = 0;
+        int hi = candidates.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (target.compareDistance(candidates.get(mid).peer.getNodeId(), id) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        candidates.add(lo, c);
+    }
+
+    private List<Peer> closest() {
+        List<Peer> out = new ArrayList<>(k);
+
+        for (Candidate c : candidates) {
+            if (c.state == RESPONDED) out.add(c.peer);
+            if (out.size() == k) break;
+        }
+
+        return out;
+    }
+
+    private static class Candidate {
+        private final Peer peer;
+        private int state = NEW;
+        private long sent;
+
+        private Candidate(Peer peer) {
+            this.peer = peer;
+        }
+    }
+}
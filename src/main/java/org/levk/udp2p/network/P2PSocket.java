@@ -1,32 +1,154 @@
 package org.levk.udp2p.network;
 
 import org.levk.udp2p.crypto.SchnorrKey;
+import org.levk.udp2p.network.peers.NodeId;
 import org.levk.udp2p.network.peers.Peer;
 import org.levk.udp2p.network.peers.PeerNotFoundException;
 import org.levk.udp2p.network.peers.PeerSet;
-import org.levk.udp2p.serialization.ENCItem;
+import org.levk.udp2p.network.peers.RoutingTableFile;
+import org.levk.udp2p.serialization.ENCSlice;
 import org.levk.udp2p.serialization.TRENC;
 import org.xerial.snappy.Snappy;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import static org.levk.udp2p.util.HashUtil.blake2ECC;
 
 class P2PSocket {
+    /* Most unacked packets in flight before
+     * streams stop producing new ones */
+    private static final int SEND_WINDOW = 64;
+
+    /* A packet still unacked after this long is given up on,
+     * so a silent peer can't hold the send window forever */
+    private static final long ACK_TIMEOUT = 3000;
+
+    /* Retransmit timeouts: before any RTT is known, the least
+     * it may be, & the longest receives block so the send loop
+     * & maintenance keep running while nothing arrives */
+    private static final long INITIAL_RTO = 1000;
+    private static final long MIN_RTO = 200;
+    private static final int TICK = 10;
+
+    /* Datagram sizes tried by path MTU probes, smallest first:
+     * the IPv6 minimum, Ethernet over IPv6 & IPv4, jumbo frames */
+    private static final int[] PROBE_DATAGRAMS = {1232, 1452, 1472, 8972};
+
+    /* Receive buffers have to hold the largest probe a
+     * peer may send us, not just what we negotiated */
+    private static final int MAX_DATAGRAM = 8972;
+
+    /* Unacked probes after this long count as lost */
+    private static final long PROBE_TIMEOUT = 3000;
+
+    /* How long small messages wait to share a datagram */
+    private static final long DEFAULT_COALESCE_DELAY = 5;
+
+    /* Node lookups: queries in flight per lookup, how long
+     * each query gets, & how long a bucket may go without
+     * a lookup aimed into it before one is started */
+    private static final int LOOKUP_ALPHA = 3;
+    private static final long LOOKUP_TIMEOUT = 1000;
+    private static final long REFRESH_INTERVAL = 15 * 60 * 1000;
+
+    /* How often lookups & bucket refreshes are driven */
+    private static final long MAINTENANCE_INTERVAL = 100;
+
+    /* Routed packets are dropped after this many hops.
+     * Each hop must also get strictly closer to the target. */
+    private static final int MAX_HOPS = 20;
+
+    /* Hashes of recent routed packets, so copies
+     * arriving by other paths are dropped */
+    private static final int SEEN_CAPACITY = 8192;
+
+    /* Peers per bucket a structured broadcast is handed to.
+     * More than 1 adds redundancy, at the cost of duplicates. */
+    private static final int KADCAST_FANOUT = 1;
+
+    /* Announce-then-pull: how many complete messages are kept
+     * for serving & the bytes they may take, how many pulls
+     * may be open, & how long one may go unfinished before
+     * another announcement can restart it */
+    private static final int CACHE_ENTRIES = 1024;
+    private static final long CACHE_BYTES = 64L << 20;
+    private static final int MAX_PULLS = 256;
+    private static final long PULL_TIMEOUT = 10000;
+
+    /* Largest set an INV may have us pull. Even at the largest
+     * datagram such a set fits the cache without spilling, so
+     * a remote set size can't make us allocate much. */
+    private static final int MAX_PULL_SET_SIZE = (int)(CACHE_BYTES / MAX_DATAGRAM);
+
+    /* Messages whose announced range hashes & holders are kept
+     * for swarm fetching, the least recently announced dropped */
+    private static final int MAX_ANNOUNCEMENTS = 1024;
+
+    /* How long the least recently seen peer of a full bucket
+     * has to answer a ping before a candidate replaces it */
+    private static final long EVICTION_TIMEOUT = 2000;
+
+    /* How often the routing table is saved, once restore() names a file */
+    private static final long CHECKPOINT_INTERVAL = 60000;
+
+    /* Most packets served for one GETRANGE */
+    private static final int MAX_RANGE = 1024;
+
     private final SecureRandom rand;
 
     private Queue<Message> toSend;
     private Queue<Message> toAck;
     private Queue<Message> received;
+    private Queue<StreamSend> streams;
+
+    /* Null when coalescing is off */
+    private Coalescer coalescer;
+
+    private List<NodeLookup> lookups;
+    private long lastMaintenance;
+
+    /* Access ordered, eldest evicted past SEEN_CAPACITY */
+    private Map<ByteBuffer, Boolean> seen;
+
+    /* Messages we can serve, & the ones we asked for,
+     * reassembled here as they arrive, by messageHash */
+    private MessageCache cache;
+    private Map<ByteBuffer, Pull> pulls;
+
+    /* Messages being fetched from several holders at once,
+     * & what INVs said about messages we could fetch */
+    private Map<ByteBuffer, SwarmFetch> fetches;
+    private Map<ByteBuffer, Announcement> announcements;
+
+    /* Where the routing table is checkpointed, null for nowhere */
+    private Path tableFile;
+    private long lastCheckpoint;
 
     private int networkId;
+    private int k;
+
+    /* Highest wire format this node speaks */
+    private int wireFormat = Packet.WIRE_COMPACT;
+
+    /* Peer.CAP_* bits advertised after the format in joins & yes */
+    private static final int CAPABILITIES = Peer.CAP_COMPRESSION | Peer.CAP_COALESCING;
     private int port;
     private boolean running;
     private PeerSet peers;
@@ -35,12 +157,35 @@ class P2PSocket {
     private ThreadPoolExecutor executor;
 
     public P2PSocket(int threadCount, int networkId, SchnorrKey key, int k, int port) throws SocketException {
+        this(threadCount, networkId, key, k, port, DEFAULT_COALESCE_DELAY);
+    }
+
+    /* A coalesceDelay of 0 sends every message in its own packets */
+    public P2PSocket(int threadCount, int networkId, SchnorrKey key, int k, int port, long coalesceDelay) throws SocketException {
         this.executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(threadCount);
         this.rand = new SecureRandom();
         this.toSend = new LinkedList<>();
         this.toAck = new LinkedList<>();
         this.received = new LinkedList<>();
+        this.streams = new LinkedList<>();
+        this.lookups = new LinkedList<>();
+        this.cache = new MessageCache(CACHE_ENTRIES, CACHE_BYTES);
+        this.pulls = new HashMap<>();
+        this.fetches = new HashMap<>();
+        this.announcements = new LinkedHashMap<ByteBuffer, Announcement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Announcement> eldest) {
+                return size() > MAX_ANNOUNCEMENTS;
+            }
+        };
+        this.seen = new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+                return size() > SEEN_CAPACITY;
+            }
+        };
         this.key = key;
+        this.k = k;
 
         this.networkId = networkId;
         this.port = port;
@@ -49,6 +194,15 @@ class P2PSocket {
 
         this.socket = new DatagramSocket(port);
 
+        /* Receives time out so queued sends, retransmits, batches
+         * & maintenance still happen while nothing is arriving */
+        int timeout = TICK;
+        if (coalesceDelay > 0) {
+            this.coalescer = new Coalescer(coalesceDelay);
+            timeout = (int)Math.min(coalesceDelay, TICK);
+        }
+        this.socket.setSoTimeout(timeout);
+
         for (int i = 0; i < threadCount; i++) {
             executor.submit(new Runnable() {
                 @Override
@@ -62,9 +216,11 @@ class P2PSocket {
 
     private void handleSocket() {
         int i = 0;
-        byte[] buf;
+
+        /* One buffer per thread, reused. Each datagram is
+         * copied out at its exact length before parsing. */
+        byte[] buf = new byte[MAX_DATAGRAM];
         while (running) {
-            buf = new byte[1024];
             /* Periodically perform keepalive */
             if (i == 5000) {
                 for (Peer p : peers.toRefresh()) {
@@ -76,33 +232,59 @@ class P2PSocket {
             if (i == 10000) {
                 i = 0;
                 peers.trimAllBuckets();
-                i++;
             }
 
+            i++;
+
             try {
                 DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                sockReceive(packet);
+                boolean arrived = true;
 
                 try {
-                    /* If not a valid packet, will fail on
-                     * parsing or signature validation, in
-                     * which case do NOT handle or add to received */
-                    Packet p = new Packet(packet.getData());
-                    p.parse();
-
-                    if (p.checkSig()) {
-                        Message m = new Message(new Peer(p.getSender(), packet.getAddress().getAddress()), p);
-                        handleMessage(m);
+                    sockReceive(packet);
+                } catch (SocketTimeoutException t) {
+                    arrived = false;
+                }
+
+                if (arrived) {
+                    try {
+                        /* If not a valid packet, will fail on
+                         * parsing or signature validation, in
+                         * which case do NOT handle or add to received */
+                        Packet p = new Packet(Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength()));
+                        p.parse();
+
+                        if (p.checkSig()) {
+                            Message m = new Message(new Peer(p.getSender(), packet.getAddress().getAddress()), p);
+                            handleMessage(m);
+                        }
+                    } catch (IOException f) {
+                        System.out.println("Compression/Decompression failed.");
+                        f.printStackTrace();
+                    } catch (PeerNotFoundException u) {
+                        System.out.println("Handled a message from an unknown peer inappropriately. This should never happen.");
+                        u.printStackTrace();
+                    } catch (RuntimeException r) {
+                        /* Drop anything malformed rather than
+                         * letting one datagram end the loop */
+                        System.out.println("Dropped a malformed packet.");
+                        r.printStackTrace();
                     }
-                } catch (IOException f) {
-                    System.out.println("Compression/Decompression failed.");
-                    f.printStackTrace();
-                } catch (PeerNotFoundException u) {
-                    System.out.println("Handled a message from an unknown peer inappropriately. This should never happen.");
-                    u.printStackTrace();
                 }
 
 
+                /* Send batches of small messages that have waited long enough */
+                flushCoalesced();
+
+                /* Move lookups along & refresh quiet buckets */
+                maintain();
+
+                /* Free the window of packets that were never acked */
+                expireAcks();
+
+                /* Cut the next streamed packet if the window allows */
+                pumpStreams();
+
                 Message tempMessage = getToSend();
                 if (tempMessage != null) {
 
@@ -115,7 +297,11 @@ class P2PSocket {
                      * different model at some point,
                      * prioritizing one networkId
                      * over others. */
-                    if (awaitAck(tempMessage.getPacket().getPacketType())) {
+                    /* Packets we only pass on are not ours to retransmit,
+                     * & targeted packets & broadcasts are relayed without
+                     * acks. Broadcasts lean on the fanout for redundancy. */
+                    Packet outgoing = tempMessage.getPacket();
+                    if (awaitAck(outgoing.getPacketType()) && outgoing.getHops() == 0 && !outgoing.hasTarget() && outgoing.getBroadcastHeight() < 0) {
                         scheduleAck(tempMessage);
                     }
 
@@ -126,11 +312,17 @@ class P2PSocket {
                     /* Creates UDP packet to send */
                     packet = new DatagramPacket(tempBuf, tempBuf.length, tempPeer.getIpAddress(), port);
 
-                    /* Sends packet */
-                    sockSend(packet);
+                    /* Sends packet. A probe larger than the local
+                     * interface allows can be refused outright,
+                     * which just means it timing out as lost. */
+                    try {
+                        sockSend(packet);
+                    } catch (IOException e) {
+                        if (tempMessage.getPacket().getPacketType() != 11) throw e;
+                    }
                 }
 
-                Message ackable = peekAck();
+                Message ackable = nextRetransmit();
                 if (ackable != null) {
 
                     byte[] tempBuf = ackable.getPacket().getEncoded();
@@ -160,16 +352,34 @@ class P2PSocket {
         }
     }
 
-    private synchronized void considerAcked(Message m) {
-        this.toAck.remove(m);
+    /* Removes the packet acked by packetECC, which the
+     * send loop may be expiring at the same time */
+    private synchronized boolean considerAcked(byte[] packetECC) {
+        Iterator<Message> it = toAck.iterator();
+        while (it.hasNext()) {
+            if (Arrays.equals(it.next().getPacket().getPacketECC(), packetECC)) {
+                it.remove();
+                return true;
+            }
+        }
+
+        return false;
     }
 
-    private synchronized Message peekAck() {
-        if (toAck.isEmpty()) {
-            return null;
-        } else {
-            return toAck.peek();
+    /* The first packet whose ack is overdue, or null. Its timer
+     * restarts at twice the timeout, as TCP backs off. */
+    private synchronized Message nextRetransmit() {
+        long now = System.currentTimeMillis();
+
+        for (Message m : toAck) {
+            if (now - m.getLastSent() >= m.getRetransmitTimeout()) {
+                m.setLastSent(now);
+                m.setRetransmitTimeout(Math.min(m.getRetransmitTimeout() * 2, ACK_TIMEOUT));
+                return m;
+            }
         }
+
+        return null;
     }
 
     private synchronized Message getToSend() {
@@ -184,14 +394,72 @@ class P2PSocket {
         this.toSend.add(m);
     }
 
+    /* Called as m first goes out */
     private synchronized void scheduleAck(Message m) {
+        long now = System.currentTimeMillis();
+        m.setAwaitingSince(now);
+        m.setLastSent(now);
+        m.setRetransmitTimeout(retransmitTimeout(known(m.getPeer())));
         this.toAck.add(m);
     }
 
+    /* RTT plus four deviations as in RFC 6298, from the
+     * peer's ping estimate, or INITIAL_RTO before one */
+    static long retransmitTimeout(Peer p) {
+        if (p.getRtt() < 0) return INITIAL_RTO;
+
+        return Math.min(Math.max(p.getRtt() + 4L * p.getRttVar(), MIN_RTO), ACK_TIMEOUT);
+    }
+
+    /* Drops packets unacked past ACK_TIMEOUT. They're
+     * queued in the order sent, so the oldest are first. */
+    private synchronized void expireAcks() {
+        long now = System.currentTimeMillis();
+
+        while (!toAck.isEmpty() && now - toAck.peek().getAwaitingSince() > ACK_TIMEOUT) {
+            toAck.remove();
+        }
+    }
+
     private synchronized void receive(Message m) {
         this.received.add(m);
     }
 
+    /* Takes the next stream in turn, unless too
+     * many packets are already awaiting acks */
+    private synchronized StreamSend nextStream() {
+        if (streams.isEmpty() || toAck.size() >= SEND_WINDOW) {
+            return null;
+        }
+
+        return streams.remove();
+    }
+
+    private synchronized void scheduleStream(StreamSend s) {
+        streams.add(s);
+    }
+
+    private void pumpStreams() {
+        StreamSend s = nextStream();
+        if (s == null) return;
+
+        try {
+            if (s.stream.hasNext()) {
+                scheduleSend(new Message(s.peer, s.stream.next()));
+            }
+
+            if (s.stream.hasNext()) {
+                scheduleStream(s);
+            } else {
+                s.stream.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Reading streamed message failed.");
+            e.printStackTrace();
+        }
+    }
+
+    /* Application types, Packet.FIRST_APP_TYPE & up, are acked */
     private boolean awaitAck(int i) {
         switch (i) {
             case 0: return false;
@@ -205,22 +473,71 @@ class P2PSocket {
             case 8: return false;
             case 9: return false;
             case 10: return false;
+            case 11: return false;
+            case 12: return false;
+            case 13: return true;
+            case 14: return false;
+            case 15: return false;
+            case 16: return false;
+            case 17: return false;
+            case 18: return false;
             default: return true;
         }
     }
 
     private void handleMessage(Message m) throws IOException, PeerNotFoundException {
+        /* Addressed packets are delivered here or passed on.
+         * The sender may be any node, not just a neighbour. */
+        if (m.getPacket().hasTarget()) {
+            route(m);
+            return;
+        }
+
+        /* Structured broadcasts are delivered & passed down
+         * the tree, whoever they came from */
+        if (m.getPacket().getBroadcastHeight() >= 0) {
+            relayBroadcast(m);
+            return;
+        }
+
+        /* Packets of messages we pulled are signed by their
+         * origin, which needn't be the peer serving them */
+        if (acceptPulled(m) || acceptFetched(m)) {
+            return;
+        }
+
         /* If packet is a join request (0) */
         if (m.getPacket().getPacketType() == 0) {
             Packet replyPacket;
-            if (peers.hasSpace(m.getPeer())) {
-                peers.add(m.getPeer());
+            Peer joining = m.getPeer();
+
+            /* Joins carry the highest wire format the sender
+             * speaks, then its capabilities. Older nodes send
+             * none & get TRENC, uncompressed. */
+            negotiate(joining, m.getPacket().getPayload());
+
+            /* A peer we kept across a restart may join again */
+            if (peers.contains(joining.getNodeId()) || peers.hasSpace(joining)) {
+                peers.add(joining);
+
+                /* A peer that joins again may have restarted with
+                 * another format or path, so whatever copy we hold
+                 * takes the freshly agreed state */
+                Peer stored = known(joining);
+                if (stored != joining) {
+                    stored.setWireFormat(joining.getWireFormat());
+                    stored.setCapabilities(joining.getCapabilities());
+                    stored.resetPath();
+                }
 
-                /* Reply with yes (2) */
-                replyPacket = new Packet(0, 1, randomByte(), 2, new byte[0], blake2ECC(new byte[0]), networkId, key);
+                /* Reply with yes (2), carrying the agreed format & our capabilities */
+                replyPacket = protocolPacket(joining, 2, new byte[]{(byte)joining.getWireFormat(), (byte)CAPABILITIES});
             } else {
+                /* Keep it in mind for when a slot frees up */
+                peers.addReplacement(joining);
+
                 /* Reply with no (3) */
-                replyPacket = new Packet(0, 1, randomByte(), 3, new byte[0], blake2ECC(new byte[0]), networkId, key);
+                replyPacket = protocolPacket(joining, 3, new byte[0]);
             }
 
             Message reply = new Message(m.getPeer(), replyPacket);
@@ -230,7 +547,7 @@ class P2PSocket {
 
         /* If packet is an address request (6) */
         if (m.getPacket().getPacketType() == 6) {
-            Packet replyPacket = new Packet(0, 1, randomByte(), 7, this.key.getAddress(), blake2ECC(this.key.getAddress()), networkId, key);
+            Packet replyPacket = protocolPacket(m.getPeer(), 7, this.key.getAddress());
             Message reply = new Message(m.getPeer(), replyPacket);
             scheduleSend(reply);
             return;
@@ -243,12 +560,38 @@ class P2PSocket {
             return;
         }
 
+        /* If packet is a node lookup (14)
+         * Answered for anyone, as lookups mostly
+         * query nodes that aren't our peers */
+        if (m.getPacket().getPacketType() == 14) {
+            if (m.getPacket().getPayloadLength() == NodeId.LENGTH) {
+                NodeId target = new NodeId(m.getPacket().getPayload());
+                byte[] nodes = encodeNodes(target, peers.findClosest(target, k), maxPayload(m.getPeer()));
+
+                /* Reply with node list (15) */
+                Packet replyPacket = protocolPacket(m.getPeer(), 15, nodes);
+                Message reply = new Message(m.getPeer(), replyPacket);
+                scheduleSend(reply);
+            }
+            return;
+        }
+
+        /* If packet is a node list (15)
+         * Feed the lookups that asked for it */
+        if (m.getPacket().getPacketType() == 15) {
+            handleNodes(m);
+            return;
+        }
+
         /* If not a join request or address request, ignore messages from unknown nodes */
-        if (peers.contains(m.getPeer().getAddress())) {
+        if (peers.contains(m.getPeer().getNodeId())) {
+            /* Any traffic from a peer moves its path MTU probing along */
+            probePath(peers.getPeer(m.getPeer().getNodeId()));
+
             /* If packet is a leave request (1)
              * Leave requests do not get acked */
             if (m.getPacket().getPacketType() == 1) {
-                peers.remove(m.getPeer().getAddress());
+                peers.remove(m.getPeer().getNodeId());
                 return;
             }
 
@@ -256,11 +599,19 @@ class P2PSocket {
              * Automatically request peers
              * upon a successful connection */
             if (m.getPacket().getPacketType() == 2) {
+                /* Switch to the wire format the peer agreed to */
+                negotiate(known(m.getPeer()), m.getPacket().getPayload());
+
                 /* Reply with peer request (4) */
-                Packet replyPacket = new Packet(0, 1, randomByte(), 4, new byte[0], blake2ECC(new byte[0]), networkId, key);
+                Packet replyPacket = protocolPacket(m.getPeer(), 4, new byte[0]);
                 Message reply = new Message(m.getPeer(), replyPacket);
                 scheduleSend(reply);
-                peers.getPeer(m.getPeer().getAddress()).witness();
+                peers.getPeer(m.getPeer().getNodeId()).witness();
+
+                /* Looking ourselves up fills the buckets near us */
+                if (!hasLookup(key.getNodeId())) {
+                    lookup(key.getNodeId());
+                }
                 return;
             }
 
@@ -268,10 +619,10 @@ class P2PSocket {
              * Remove peer from peerset */
             if (m.getPacket().getPacketType() == 3) {
                 /* Remove & reply with ack */
-                peers.remove(m.getPeer().getAddress());
+                peers.remove(m.getPeer().getNodeId());
 
                 byte[] ackHash = m.getPacket().getPacketECC();
-                Packet replyPacket = new Packet(0, 1, randomByte(), 10, ackHash, blake2ECC(ackHash), networkId, key);
+                Packet replyPacket = protocolPacket(m.getPeer(), 10, ackHash);
                 Message reply = new Message(m.getPeer(), replyPacket);
                 scheduleSend(reply);
                 return;
@@ -284,10 +635,10 @@ class P2PSocket {
                 byte[] encodedPeers = Snappy.compress(encodedPeersPreComp);
 
                 /* Reply with peerlist (5) */
-                Packet replyPacket = new Packet(0, 1, randomByte(), 5, encodedPeers, blake2ECC(encodedPeers), networkId, key);
+                Packet replyPacket = protocolPacket(m.getPeer(), 5, encodedPeers);
                 Message reply = new Message(m.getPeer(), replyPacket);
                 scheduleSend(reply);
-                peers.getPeer(m.getPeer().getAddress()).witness();
+                peers.getPeer(m.getPeer().getNodeId()).witness();
                 return;
             }
 
@@ -295,52 +646,204 @@ class P2PSocket {
              * deserialize & attempt to connect */
             if(m.getPacket().getPacketType() == 5) {
                 byte[] ackHash = m.getPacket().getPacketECC();
-                Packet replyPacket = new Packet(0, 1, randomByte(), 10, ackHash, blake2ECC(ackHash), networkId, key);
+                Packet replyPacket = protocolPacket(m.getPeer(), 10, ackHash);
                 Message reply = new Message(m.getPeer(), replyPacket);
                 scheduleSend(reply);
 
                 byte[] dat = Snappy.uncompress(m.getPacket().getPayload());
-                for (ENCItem i : TRENC.decode(dat)) {
-                    Peer temp = new Peer(i.getEncData());
+                for (Peer temp : Peer.SCHEMA.decodeList(dat)) {
                     if (peers.hasSpace(temp)) {
                         this.connect(temp);
+                    } else if (!peers.contains(temp.getNodeId())) {
+                        peers.addReplacement(temp);
                     }
                 }
 
-                peers.getPeer(m.getPeer().getAddress()).witness();
+                peers.getPeer(m.getPeer().getNodeId()).witness();
                 return;
             }
 
             /* If packet is a ping (8), pong (9) */
             if (m.getPacket().getPacketType() == 8) {
-                Packet replyPacket = new Packet(0, 1, randomByte(), 9, new byte[0], blake2ECC(new byte[0]), networkId, key);
+                Packet replyPacket = protocolPacket(m.getPeer(), 9, new byte[0]);
                 Message reply = new Message(m.getPeer(), replyPacket);
                 scheduleSend(reply);
-                peers.getPeer(m.getPeer().getAddress()).witness();
+                peers.getPeer(m.getPeer().getNodeId()).witness();
                 return;
             }
 
             if (m.getPacket().getPacketType() == 9) {
-                peers.getPeer(m.getPeer().getAddress()).witness();
+                Peer known = peers.getPeer(m.getPeer().getNodeId());
+                known.ponged();
+                known.witness();
+                return;
+            }
+
+            /* If packet is a path MTU probe (11)
+             * Echo the probed size back in a probe ack (12).
+             * A probe that arrived intact fit the path. */
+            if (m.getPacket().getPacketType() == 11) {
+                if (m.getPacket().getPayloadLength() >= 4) {
+                    byte[] size = Arrays.copyOfRange(m.getPacket().getPayload(), 0, 4);
+                    Packet replyPacket = protocolPacket(m.getPeer(), 12, size);
+                    Message reply = new Message(m.getPeer(), replyPacket);
+                    scheduleSend(reply);
+                }
+
+                peers.getPeer(m.getPeer().getNodeId()).witness();
+                return;
+            }
+
+            /* If packet is a probe ack (12)
+             * Raise the peer's datagram size & try the next one */
+            if (m.getPacket().getPacketType() == 12) {
+                Peer known = peers.getPeer(m.getPeer().getNodeId());
+
+                if (m.getPacket().getPayloadLength() == 4) {
+                    if (known.confirmProbe(ByteBuffer.wrap(m.getPacket().getPayload()).getInt())) {
+                        probePath(known);
+                    }
+                }
+
+                known.witness();
+                return;
+            }
+
+            /* If packet is a container (13)
+             * Ack it, then receive each message in it */
+            if (m.getPacket().getPacketType() == 13) {
+                byte[] ackHash = m.getPacket().getPacketECC();
+                Packet replyPacket = protocolPacket(m.getPeer(), 10, ackHash);
+                Message reply = new Message(m.getPeer(), replyPacket);
+                scheduleSend(reply);
+
+                if (this.networkId == m.getPacket().getNetworkId()) {
+                    try {
+                        List<Coalescer.Entry> entries = Coalescer.unpack(m.getPacket().getPayload());
+                        for (int i = 0; i < entries.size(); i++) {
+                            Packet inner = new Packet(m.getPacket(), i, entries.get(i).getType(), entries.get(i).getPayload());
+                            receive(new Message(m.getPeer(), inner));
+                        }
+                    } catch (RuntimeException e) {
+                        System.out.println("Malformed container packet.");
+                        e.printStackTrace();
+                    }
+                }
+
+                peers.getPeer(m.getPeer().getNodeId()).witness();
                 return;
             }
 
             /* If packet is an ack */
             if (m.getPacket().getPacketType() == 10) {
-                for (Message temp : toAck) {
-                    if (Arrays.equals(temp.getPacket().getPacketECC(), m.getPacket().getPayload())) {
-                        considerAcked(temp);
-                        return;
+                if (considerAcked(m.getPacket().getPayload())) return;
+
+                peers.getPeer(m.getPeer().getNodeId()).witness();
+                return;
+            }
+
+            /* If packet is an inventory (16)
+             * Note its range hashes for swarm fetching, & ask
+             * for whatever we don't have or aren't already pulling */
+            if (m.getPacket().getPacketType() == 16) {
+                List<Inventory> announced;
+                try {
+                    announced = Inventory.SCHEMA.decodeList(m.getPacket().getPayload());
+                } catch (RuntimeException e) {
+                    System.out.println("Malformed inventory packet.");
+                    e.printStackTrace();
+                    return;
+                }
+
+                List<Inventory> wanted = new ArrayList<>();
+
+                for (Inventory inv : announced) {
+                    /* Only application messages are pulled */
+                    if (inv.getPacketType() < Packet.FIRST_APP_TYPE || cache.contains(inv.getMessageHash())) continue;
+
+                    noteAnnounced(inv, m.getPeer());
+
+                    if (inv.getSetSize() > 0 && inv.getSetSize() <= MAX_PULL_SET_SIZE && startPull(inv)) {
+                        wanted.add(new Inventory(inv.getMessageHash(), inv.getPacketType(), inv.getSetSize()));
+                    }
+                }
+
+                /* Reply with getdata (17) */
+                if (!wanted.isEmpty()) {
+                    Packet replyPacket = protocolPacket(m.getPeer(), 17, Inventory.SCHEMA.encodeList(wanted));
+                    Message reply = new Message(m.getPeer(), replyPacket);
+                    scheduleSend(reply);
+                }
+
+                peers.getPeer(m.getPeer().getNodeId()).witness();
+                return;
+            }
+
+            /* If packet is a getdata (17)
+             * Serve the original packets from the cache. They go
+             * out as forwarded copies, which aren't ours to retransmit. */
+            if (m.getPacket().getPacketType() == 17) {
+                List<Inventory> requested;
+                try {
+                    requested = Inventory.SCHEMA.decodeList(m.getPacket().getPayload());
+                } catch (RuntimeException e) {
+                    System.out.println("Malformed getdata packet.");
+                    e.printStackTrace();
+                    return;
+                }
+
+                for (Inventory inv : requested) {
+                    PacketSet set = cache.get(inv.getMessageHash());
+                    if (set == null) continue;
+
+                    for (Packet p : set.getPackets()) {
+                        if (p != null) scheduleSend(new Message(m.getPeer(), p.forwarded()));
+                    }
+                }
+
+                peers.getPeer(m.getPeer().getNodeId()).witness();
+                return;
+            }
+
+            /* If packet is a getrange (18)
+             * Serve part of a cached message, as for getdata */
+            if (m.getPacket().getPacketType() == 18) {
+                SwarmFetch.Request range;
+                try {
+                    range = SwarmFetch.Request.SCHEMA.decode(m.getPacket().getPayload());
+                } catch (RuntimeException e) {
+                    System.out.println("Malformed getrange packet.");
+                    e.printStackTrace();
+                    return;
+                }
+                PacketSet set = cache.get(range.getMessageHash());
+
+                if (set != null) {
+                    List<Packet> packets = set.getPackets();
+                    int from = Math.max(range.getFrom(), 0);
+                    int to = (int)Math.min((long)from + Math.min(range.getCount(), MAX_RANGE), packets.size());
+
+                    for (int i = from; i < to; i++) {
+                        Packet p = packets.get(i);
+                        if (p != null) scheduleSend(new Message(m.getPeer(), p.forwarded()));
                     }
                 }
 
-                peers.getPeer(m.getPeer().getAddress()).witness();
+                peers.getPeer(m.getPeer().getNodeId()).witness();
                 return;
             }
 
             /* If not a protocol message */
             /* If the packet isn't from a known peer or from the same network, ignore. */
             if (this.networkId == m.getPacket().getNetworkId()) {
+                /* The sender awaits an ack for packets it sent
+                 * itself, which also frees its send window */
+                if (m.getPacket().getHops() == 0) {
+                    byte[] ackHash = m.getPacket().getPacketECC();
+                    Packet replyPacket = protocolPacket(m.getPeer(), 10, ackHash);
+                    scheduleSend(new Message(m.getPeer(), replyPacket));
+                }
+
                 receive(m);
             }
         }
@@ -350,13 +853,20 @@ class P2PSocket {
 
     private void connect(Peer p) {
         if (peers.hasSpace(p)) {
-            Packet joinPacket = new Packet(0, 1, randomByte(), 0, new byte[0], blake2ECC(new byte[0]), networkId, key);
-            Message join = new Message(p, joinPacket);
-            scheduleSend(join);
+            join(p);
             peers.add(p);
         }
     }
 
+    private void join(Peer p) {
+        /* Advertise the highest wire format we speak & what
+         * else we support. Joins themselves always go out as TRENC. */
+        byte[] formats = new byte[]{(byte)wireFormat, (byte)CAPABILITIES};
+        Packet joinPacket = new Packet(0, 1, randomByte(), 0, formats, blake2ECC(formats), networkId, key);
+        Message join = new Message(p, joinPacket);
+        scheduleSend(join);
+    }
+
     public void connect(byte[] ip) {
         try {
             InetAddress addr = InetAddress.getByAddress(ip);
@@ -374,6 +884,112 @@ class P2PSocket {
         scheduleSend(m);
     }
 
+    /* Sends a message of any size, cut to fit the path MTU
+     * discovered for the peer. Small messages are held
+     * briefly to be batched with others to the same peer. */
+    public void send(Peer peer, int packetType, byte[] data) {
+        checkAppType(packetType);
+        int maxPayload = maxPayload(peer);
+
+        /* Only peers that said they unpack containers get batches */
+        if (coalescer != null && known(peer).supports(Peer.CAP_COALESCING) && Coalescer.fits(packetType, data, maxPayload)) {
+            Coalescer.Batch full = coalescer.add(peer, packetType, data, maxPayload);
+            if (full != null) sendBatch(full);
+            return;
+        }
+
+        sendSet(peer, packetType, data);
+    }
+
+    private void sendSet(Peer peer, int packetType, byte[] data) {
+        /* Only peers that said they can decompress get compressed sets */
+        boolean compress = known(peer).supports(Peer.CAP_COMPRESSION);
+        PacketSet set = new PacketSet(packetType, new byte[20], data, networkId, key, 0, formatFor(peer), maxPayload(peer), compress);
+
+        for (Packet p : set.getPackets()) {
+            scheduleSend(new Message(peer, p));
+        }
+    }
+
+    /* Sends a message to the node with the given id, through
+     * the peer closest to it when it isn't a neighbour */
+    public void sendTo(NodeId target, int packetType, byte[] data) {
+        checkAppType(packetType);
+        Peer hop = nextHop(target);
+        if (hop == null) throw new RuntimeException("No peer to route through.");
+
+        PacketSet set = new PacketSet(packetType, target.toBytes(), data, networkId, key, 0, formatFor(hop), maxPayload(hop));
+
+        for (Packet p : set.getPackets()) {
+            markSeen(p.getHash());
+            scheduleSend(new Message(hop, p));
+        }
+    }
+
+    private void route(Message m) {
+        Packet p = m.getPacket();
+        if (!markSeen(p.getHash())) return;
+
+        if (Arrays.equals(p.getTarget(), key.getAddress())) {
+            if (this.networkId == p.getNetworkId()) {
+                receive(m);
+            }
+            return;
+        }
+
+        if (p.getHops() >= MAX_HOPS) return;
+
+        NodeId target = new NodeId(p.getTarget());
+        Peer hop = nextHop(target);
+
+        /* Only strictly closer than us, so every hop makes progress
+         * & a packet can't circle. If we're closest, drop it. */
+        if (hop == null || target.compareDistance(hop.getNodeId(), key.getNodeId()) >= 0) return;
+
+        scheduleSend(new Message(hop, p.forwarded()));
+    }
+
+    private Peer nextHop(NodeId target) {
+        try {
+            if (peers.contains(target)) return peers.getPeer(target);
+        } catch (PeerNotFoundException e) {
+            /* Removed in between, fall back to the closest */
+        }
+
+        List<Peer> closest = peers.findClosest(target, 1);
+        return closest.isEmpty() ? null : closest.get(0);
+    }
+
+    /* False if the hash was already seen */
+    private synchronized boolean markSeen(byte[] hash) {
+        return seen.put(ByteBuffer.wrap(hash), Boolean.TRUE) == null;
+    }
+
+    private void flushCoalesced() {
+        if (coalescer == null) return;
+
+        for (Coalescer.Batch b : coalescer.due()) {
+            sendBatch(b);
+        }
+    }
+
+    /* A lone message goes out as itself, without a container */
+    private void sendBatch(Coalescer.Batch b) {
+        if (b.size() == 1) {
+            sendSet(b.getPeer(), b.get(0).getType(), b.get(0).getPayload());
+            return;
+        }
+
+        Packet container = protocolPacket(b.getPeer(), 13, b.encode());
+        scheduleSend(new Message(b.getPeer(), container));
+    }
+
+    /* Packets are cut from the stream as the send window
+     * allows. The stream is closed once fully sent. */
+    public void send(Peer peer, PacketStream stream) {
+        scheduleStream(new StreamSend(peer, stream));
+    }
+
     public synchronized Message receive() {
         return received.remove();
     }
@@ -392,29 +1008,657 @@ class P2PSocket {
         }
     }
 
+    /* Packets are broadcast as they finish signing
+     * rather than once the whole set is ready */
+    public void broadcast(AsyncPacketSet set) {
+        for (CompletableFuture<Packet> p : set.getPackets()) {
+            p.thenAccept(this::broadcast);
+        }
+    }
+
+    /* Kadcast style structured broadcast. Bucket b holds the
+     * peers sharing exactly b leading bits with us, so handing
+     * one peer from every bucket the height b makes it responsible
+     * for everything sharing b + 1 bits with it. It relays to one
+     * peer in each of its buckets deeper than b, & so on. Every
+     * node gets the packet once, in O(log n) hops, & each node
+     * only sends it to O(log n) peers. Packets go out as they
+     * are; relays pass on the original bytes. */
+    public void kadcast(PacketSet set) {
+        kadcast(set, KADCAST_FANOUT);
+    }
+
+    public void kadcast(PacketSet set, int fanout) {
+        checkAppType(set.getSetType());
+
+        for (Packet p : set.getPackets()) {
+            markSeen(p.getHash());
+
+            for (int b = 0; b < NodeId.BITS; b++) {
+                for (Peer peer : peers.sampleBucket(b, fanout, rand)) {
+                    send(new Message(peer, p.delegated(b)));
+                }
+            }
+        }
+    }
+
+    /* Caches the message & announces it to every peer, who
+     * then pull it if they don't have it yet. Each node
+     * receives the message about once, rather than once per
+     * peer that has it. */
+    public void announce(PacketSet set) {
+        checkAppType(set.getSetType());
+        if (!cache.put(set)) throw new RuntimeException("Message too large to announce.");
+
+        announce(set, null);
+    }
+
+    /* Skips the peer at address except, which already has it.
+     * Each page of range hashes goes out in its own INV. */
+    private void announce(PacketSet set, InetAddress except) {
+        List<byte[]> payloads = new ArrayList<>();
+        for (Inventory inv : Inventory.announcing(set)) {
+            payloads.add(Inventory.SCHEMA.encodeList(Collections.singletonList(inv)));
+        }
+
+        for (Peer peer : peers.getAllPeers()) {
+            if (except != null && except.equals(peer.getIpAddress())) continue;
+
+            for (byte[] payload : payloads) {
+                scheduleSend(new Message(peer, protocolPacket(peer, 16, payload)));
+            }
+        }
+    }
+
+    /* Keeps an INV entry's range hashes & announcer, for fetch() */
+    private synchronized void noteAnnounced(Inventory inv, Peer from) {
+        if (inv.getSetSize() < 1 || inv.getSetSize() > PacketSet.MAX_SET_SIZE) return;
+
+        ByteBuffer id = ByteBuffer.wrap(inv.getMessageHash());
+        Announcement a = announcements.get(id);
+        if (a == null || a.getSetSize() != inv.getSetSize()) {
+            a = new Announcement(inv.getMessageHash(), inv.getSetSize());
+            announcements.put(id, a);
+        }
+
+        try {
+            a.add(inv, from);
+        } catch (RuntimeException e) {
+            System.out.println("Malformed range hashes in inventory.");
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized Announcement getAnnouncement(byte[] messageHash) {
+        return announcements.get(ByteBuffer.wrap(messageHash));
+    }
+
+    /* Registers a pull, unless one is open or too many are */
+    private synchronized boolean startPull(Inventory inv) {
+        ByteBuffer id = ByteBuffer.wrap(inv.getMessageHash());
+        if (pulls.containsKey(id) || pulls.size() >= MAX_PULLS) return false;
+
+        pulls.put(id, new Pull(inv));
+        return true;
+    }
+
+    /* Packets must match what the INV announced */
+    private synchronized PacketSet addPulled(Packet p) {
+        ByteBuffer id = ByteBuffer.wrap(p.getMessageHash());
+        Pull pull = pulls.get(id);
+        if (pull == null) return null;
+
+        if (p.getSetSize() != pull.inv.getSetSize()) throw new RuntimeException("Packet has the wrong set size.");
+        if (p.getPacketType() != pull.inv.getPacketType()) throw new RuntimeException("Packet has the wrong type.");
+
+        if (pull.set == null) {
+            pull.set = new PacketSet(p);
+        } else {
+            pull.set.add(p);
+        }
+
+        if (!pull.set.isComplete()) return null;
+
+        pulls.remove(id);
+        return pull.set;
+    }
+
+    /* True if the packet belonged to a pull. A finished message is
+     * checked against its hash, cached, delivered & announced on.
+     * Only application packets can belong to one, & packets that
+     * merely share a pull's messageHash are handled as usual. */
+    private boolean acceptPulled(Message m) {
+        if (m.getPacket().getPacketType() < Packet.FIRST_APP_TYPE || !isPulling(m.getPacket().getMessageHash())) return false;
+
+        PacketSet set;
+        try {
+            set = addPulled(m.getPacket());
+        } catch (RuntimeException e) {
+            System.out.println("Pulled packet didn't fit its set.");
+            e.printStackTrace();
+            return false;
+        }
+
+        if (set == null) return true;
+
+        try {
+            if (!Arrays.equals(blake2ECC(set.getData()), set.getMessageHash())) {
+                System.out.println("Pulled message doesn't match its hash.");
+                return true;
+            }
+        } catch (IOException e) {
+            System.out.println("Compression/Decompression failed.");
+            e.printStackTrace();
+            return true;
+        }
+
+        cache.put(set);
+
+        if (this.networkId == m.getPacket().getNetworkId()) {
+            for (Packet p : set.getPackets()) {
+                if (p != null) receive(new Message(m.getPeer(), p));
+            }
+        }
+
+        /* m.getPeer() names the signer; the address is who served it */
+        announce(set, m.getPeer().getIpAddress());
+        return true;
+    }
+
+    private synchronized boolean isPulling(byte[] messageHash) {
+        return pulls.containsKey(ByteBuffer.wrap(messageHash));
+    }
+
+    /* Drops pulls that stalled, so a later INV can retry them */
+    private synchronized void expirePulls() {
+        long now = System.currentTimeMillis();
+        pulls.values().removeIf(pull -> now - pull.started > PULL_TIMEOUT);
+    }
+
+    /* The range hashes fetchers of an announced message need,
+     * as announce() sends them along with the messageHash
+     * & set size. Null if the message isn't cached. */
+    public List<byte[]> rangeHashes(byte[] messageHash) {
+        PacketSet cached = cache.get(messageHash);
+        if (cached == null) return null;
+
+        return SwarmFetch.rangeHashes(cached);
+    }
+
+    /* Fetches a message from every given holder at once, each
+     * asked for a different range of its packets. Every range
+     * is checked against rangeHashes as it arrives. Completes
+     * with the message once it has arrived & matches its hash. */
+    public CompletableFuture<PacketSet> fetch(byte[] messageHash, int setSize, List<byte[]> rangeHashes, List<Peer> holders) {
+        PacketSet cached = cache.get(messageHash);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+
+        SwarmFetch f = addFetch(new SwarmFetch(messageHash, setSize, rangeHashes, holders));
+        stepFetch(f);
+
+        return f.getResult();
+    }
+
+    /* Fetches a message INVs have announced, from every peer that
+     * announced it, with the range hashes they carried. Fails if
+     * no INV, or not every page of its range hashes, has arrived. */
+    public CompletableFuture<PacketSet> fetch(byte[] messageHash) {
+        PacketSet cached = cache.get(messageHash);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+
+        Announcement a = getAnnouncement(messageHash);
+        if (a == null || !a.isComplete()) {
+            CompletableFuture<PacketSet> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new RuntimeException("Message hasn't been fully announced."));
+            return failed;
+        }
+
+        return fetch(messageHash, a.getSetSize(), a.getRangeHashes(), a.getHolders());
+    }
+
+    private void stepFetch(SwarmFetch f) {
+        for (SwarmFetch.Request r : f.tick()) {
+            byte[] payload = SwarmFetch.Request.SCHEMA.encode(r);
+            scheduleSend(new Message(r.getPeer(), protocolPacket(r.getPeer(), 18, payload)));
+        }
+
+        if (f.getResult().isDone()) removeFetch(f);
+    }
+
+    /* True if the packet belonged to a fetch. A finished
+     * message is checked against its hash & cached. */
+    private boolean acceptFetched(Message m) {
+        if (m.getPacket().getPacketType() < Packet.FIRST_APP_TYPE) return false;
+
+        SwarmFetch f = getFetch(m.getPacket().getMessageHash());
+        if (f == null) return false;
+
+        /* m.getPeer() names the signer; the address is the holder */
+        PacketSet set;
+        try {
+            set = f.add(m.getPeer().getIpAddress(), m.getPacket());
+        } catch (RuntimeException e) {
+            System.out.println("Fetched packet didn't fit its set.");
+            e.printStackTrace();
+            return true;
+        }
+
+        /* Hand the sender more work as soon as its range is done */
+        if (set == null) {
+            stepFetch(f);
+            return true;
+        }
+
+        removeFetch(f);
+
+        try {
+            if (!Arrays.equals(blake2ECC(set.getData()), f.getMessageHash())) {
+                f.getResult().completeExceptionally(new RuntimeException("Fetched message doesn't match its hash."));
+                return true;
+            }
+        } catch (IOException e) {
+            System.out.println("Compression/Decompression failed.");
+            e.printStackTrace();
+            f.getResult().completeExceptionally(e);
+            return true;
+        }
+
+        cache.put(set);
+        f.getResult().complete(set);
+        return true;
+    }
+
+    /* The fetch already open for the message, if any, else f */
+    private synchronized SwarmFetch addFetch(SwarmFetch f) {
+        return fetches.computeIfAbsent(ByteBuffer.wrap(f.getMessageHash()), id -> f);
+    }
+
+    private synchronized void removeFetch(SwarmFetch f) {
+        fetches.remove(ByteBuffer.wrap(f.getMessageHash()), f);
+    }
+
+    private synchronized SwarmFetch getFetch(byte[] messageHash) {
+        return fetches.get(ByteBuffer.wrap(messageHash));
+    }
+
+    private synchronized List<SwarmFetch> activeFetches() {
+        return new ArrayList<>(fetches.values());
+    }
+
+    private void relayBroadcast(Message m) {
+        Packet p = m.getPacket();
+        if (!markSeen(p.getHash())) return;
+
+        if (this.networkId == p.getNetworkId()) {
+            receive(m);
+        }
+
+        int height = p.getBroadcastHeight();
+        if (p.getHops() >= MAX_HOPS || height >= NodeId.BITS) return;
+
+        for (int b = height + 1; b < NodeId.BITS; b++) {
+            for (Peer peer : peers.sampleBucket(b, KADCAST_FANOUT, rand)) {
+                scheduleSend(new Message(peer, p.forwarded(b)));
+            }
+        }
+    }
+
     private void broadcast(Packet p) {
+        /* Our own packets are re-signed at most once for
+         * peers that use the other wire format */
+        boolean ours = Arrays.equals(p.getSender(), key.getAddress());
+        Packet converted = null;
+
         for (Peer peer : peers.getAllPeers()) {
-            send(new Message(peer, p));
+            Packet out = p;
+
+            if (ours && peer.getWireFormat() != p.getWireFormat()) {
+                if (converted == null || converted.getWireFormat() != peer.getWireFormat()) {
+                    converted = p.reencode(peer.getWireFormat(), key);
+                }
+                out = converted;
+            }
+
+            send(new Message(peer, out));
         }
     }
 
     public void shutdown() {
+        if (getTableFile() != null) checkpoint();
+
         executor.shutdownNow();
     }
 
+    /* Loads the routing table saved in file, & checkpoints to it
+     * from then on. Saved peers are put back with their last
+     * seen times & round trip stats, & all are sent a join at
+     * once. Those that answer are witnessed; those that refuse
+     * are dropped, & those that stay silent are trimmed like any
+     * dead peer. Peers past a full bucket wait as replacements.
+     * Returns how many were rejoined. */
+    public int restore(Path file) {
+        setTableFile(file);
+
+        List<Peer> saved;
+        try {
+            saved = RoutingTableFile.load(file);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Couldn't load the routing table, starting empty.");
+            e.printStackTrace();
+            return 0;
+        }
+
+        /* Most recently seen first, so they get the slots */
+        saved.sort((a, b) -> Long.compare(b.getLastSeen(), a.getLastSeen()));
+
+        int joined = 0;
+        for (Peer p : saved) {
+            if (peers.bucketIndex(p.getNodeId()) < 0) continue;
+
+            if (peers.add(p)) {
+                join(p);
+                joined++;
+            }
+        }
+
+        return joined;
+    }
+
+    /* Saves the routing table now, if restore() named a file */
+    public void checkpoint() {
+        Path file = getTableFile();
+        if (file == null) return;
+
+        try {
+            RoutingTableFile.save(file, peers.getAllPeers());
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Couldn't checkpoint the routing table.");
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized Path getTableFile() {
+        return tableFile;
+    }
+
+    private synchronized void setTableFile(Path file) {
+        this.tableFile = file;
+        this.lastCheckpoint = System.currentTimeMillis();
+    }
+
+    private synchronized boolean dueForCheckpoint() {
+        long now = System.currentTimeMillis();
+        if (tableFile == null || now - lastCheckpoint < CHECKPOINT_INTERVAL) return false;
+
+        lastCheckpoint = now;
+        return true;
+    }
+
     private void ping(Peer p) {
-        Packet pingPacket = new Packet(0, 1, randomByte(), 8, new byte[0], blake2ECC(new byte[0]), networkId, key);
+        p.pinged();
+
+        Packet pingPacket = protocolPacket(p, 8, new byte[0]);
         Message ping = new Message(p, pingPacket);
         scheduleSend(ping);
     }
 
+    /* Types below Packet.FIRST_APP_TYPE would be taken for
+     * protocol messages by the receiving socket */
+    private static void checkAppType(int packetType) {
+        if (packetType < Packet.FIRST_APP_TYPE) throw new RuntimeException("Packet type " + packetType + " is reserved for the protocol.");
+    }
+
+    /* Sends a probe at the next untried datagram size,
+     * once any probe in flight was acked or timed out.
+     *
+     * Java can't set the don't fragment bit, so a probe
+     * larger than the path would be fragmented & still
+     * arrive. Probes are therefore capped at what the local
+     * interface sends whole, & beyond that only a probe that
+     * was lost (fragments dropped, or refused by the kernel)
+     * says anything, which counts as no. */
+    private void probePath(Peer p) {
+        if (p.getProbeCeiling() == Integer.MAX_VALUE) {
+            p.capProbes(localDatagramLimit(p.getIpAddress()));
+        }
+
+        p.expireProbe(PROBE_TIMEOUT);
+
+        int size = nextProbe(p);
+        if (size > 0 && p.startProbe(size)) {
+            /* Zero padded so the whole datagram is size bytes */
+            byte[] payload = new byte[Packet.maxPayload(size, formatFor(p))];
+            ByteBuffer.wrap(payload).putInt(size);
+
+            Packet probePacket = protocolPacket(p, 11, payload);
+            scheduleSend(new Message(p, probePacket));
+        }
+    }
+
+    /* The smallest probe size above what the path is known to
+     * take & below the ceiling, or 0 when there's none left */
+    static int nextProbe(Peer p) {
+        for (int size : PROBE_DATAGRAMS) {
+            if (size <= p.getMaxDatagram()) continue;
+            if (size >= p.getProbeCeiling()) return 0;
+
+            return size;
+        }
+
+        return 0;
+    }
+
+    /* Largest datagram the interface routing to address can send
+     * unfragmented: its MTU less the IP & UDP headers. Without
+     * an answer nothing past the default is probed. Connecting
+     * only picks the route, nothing is sent. */
+    static int localDatagramLimit(InetAddress address) {
+        try (DatagramSocket route = new DatagramSocket()) {
+            route.connect(address, 9);
+
+            NetworkInterface nif = NetworkInterface.getByInetAddress(route.getLocalAddress());
+            if (nif == null || nif.getMTU() <= 0) return Peer.DEFAULT_DATAGRAM;
+
+            int headers = (address instanceof Inet6Address) ? 48 : 28;
+            return nif.getMTU() - headers;
+        } catch (IOException e) {
+            return Peer.DEFAULT_DATAGRAM;
+        }
+    }
+
+    /* Largest payload that fits the peer's path, with
+     * room left for the trailer forwarders append */
+    private int maxPayload(Peer p) {
+        return Packet.maxPayload(known(p).getMaxDatagram() - Packet.MAX_TRAILER_LENGTH, formatFor(p));
+    }
+
+    /* A single packet protocol message, in whichever
+     * wire format was agreed with the peer */
+    private Packet protocolPacket(Peer to, int packetType, byte[] payload) {
+        return new Packet(0, 1, randomByte(), new byte[20], packetType, payload, blake2ECC(payload), networkId, key, formatFor(to));
+    }
+
+    /* Applies a join or yes payload: [format][capabilities],
+     * either of which older nodes leave out */
+    private void negotiate(Peer p, byte[] payload) {
+        if (payload.length > 0) p.setWireFormat(Math.min(payload[0] & 0xFF, wireFormat));
+        p.setCapabilities((payload.length > 1) ? payload[1] & CAPABILITIES : 0);
+    }
+
+    private int formatFor(Peer p) {
+        return known(p).getWireFormat();
+    }
+
+    /* The peerset's copy of p, which holds what was
+     * negotiated with it, or p itself if unknown */
+    private Peer known(Peer p) {
+        try {
+            if (peers.contains(p.getNodeId())) {
+                return peers.getPeer(p.getNodeId());
+            }
+        } catch (PeerNotFoundException e) {
+            /* Fall through to the peer's own settings */
+        }
+
+        return p;
+    }
+
     private byte randomByte() {
         byte[] by = new byte[1];
         rand.nextBytes(by);
         return by[0];
     }
 
+    /* Iterative lookup for the k peers closest to target. Peers
+     * that answer are connected to while their buckets have room. */
+    public CompletableFuture<List<Peer>> lookup(NodeId target) {
+        NodeLookup l = new NodeLookup(key.getNodeId(), target, k, LOOKUP_ALPHA, LOOKUP_TIMEOUT, peers.findClosest(target, k));
+        peers.touch(target);
+
+        addLookup(l);
+        stepLookup(l);
+
+        return l.getResult();
+    }
+
+    private void stepLookup(NodeLookup l) {
+        for (Peer p : l.poll()) {
+            Packet findPacket = protocolPacket(p, 14, l.getTarget().toBytes());
+            scheduleSend(new Message(p, findPacket));
+        }
+
+        if (l.isDone()) removeLookup(l);
+    }
+
+    private void handleNodes(Message m) {
+        List<Peer> found;
+        NodeId target;
+
+        try {
+            ENCSlice[] fields = TRENC.decodeSlices(m.getPacket().getPayload());
+            if (fields.length != 2) throw new RuntimeException("Node lists have 2 fields.");
+
+            target = new NodeId(fields[0].getBytes());
+            found = Peer.SCHEMA.decodeList(fields[1].getBytes());
+        } catch (RuntimeException e) {
+            System.out.println("Malformed node list.");
+            e.printStackTrace();
+            return;
+        }
+
+        boolean asked = false;
+        for (NodeLookup l : activeLookups()) {
+            if (l.getTarget().equals(target) && l.onReply(m.getPeer().getNodeId(), found)) {
+                asked = true;
+                stepLookup(l);
+            }
+        }
+
+        /* A node that answered is alive, so worth a bucket slot,
+         * or a place in line for one */
+        if (asked && !peers.contains(m.getPeer().getNodeId())) {
+            if (peers.hasSpace(m.getPeer())) {
+                connect(m.getPeer());
+            } else {
+                peers.addReplacement(m.getPeer());
+            }
+        }
+    }
+
+    /* As many of the closest peers as fit in one packet */
+    private byte[] encodeNodes(NodeId target, List<Peer> closest, int maxPayload) {
+        List<Peer> out = new ArrayList<>(closest);
+
+        while (true) {
+            byte[] encoded = TRENC.encode(target.toBytes(), Peer.SCHEMA.encodeList(out));
+            if (encoded.length <= maxPayload || out.isEmpty()) return encoded;
+
+            out.remove(out.size() - 1);
+        }
+    }
+
+    private void maintain() {
+        if (!dueForMaintenance()) return;
+
+        expirePulls();
+
+        for (NodeLookup l : activeLookups()) {
+            stepLookup(l);
+        }
+
+        for (SwarmFetch f : activeFetches()) {
+            stepFetch(f);
+        }
+
+        /* Full buckets with candidates waiting check their least
+         * recently seen peer. Silent ones make way, & whoever
+         * took a freed slot is joined. */
+        for (Peer p : peers.toPing()) {
+            ping(p);
+        }
+
+        peers.expirePings(EVICTION_TIMEOUT);
+
+        for (Peer p : peers.takePromoted()) {
+            join(p);
+        }
+
+        if (dueForCheckpoint()) checkpoint();
+
+        for (int b : peers.quietBuckets(REFRESH_INTERVAL)) {
+            lookup(peers.getNodeId().randomInBucket(b, rand));
+        }
+    }
+
+    private synchronized boolean dueForMaintenance() {
+        long now = System.currentTimeMillis();
+        if (now - lastMaintenance < MAINTENANCE_INTERVAL) return false;
+
+        lastMaintenance = now;
+        return true;
+    }
+
+    private synchronized void addLookup(NodeLookup l) {
+        lookups.add(l);
+    }
+
+    private synchronized void removeLookup(NodeLookup l) {
+        lookups.remove(l);
+    }
+
+    private synchronized List<NodeLookup> activeLookups() {
+        return new ArrayList<>(lookups);
+    }
+
+    private synchronized boolean hasLookup(NodeId target) {
+        for (NodeLookup l : lookups) {
+            if (l.getTarget().equals(target)) return true;
+        }
+
+        return false;
+    }
+
     public String getPeers() {
         return peers.toString();
     }
+
+    private static class Pull {
+        private final Inventory inv;
+        private final long started = System.currentTimeMillis();
+        private PacketSet set;
+
+        private Pull(Inventory inv) {
+            this.inv = inv;
+        }
+    }
+
+    private static class StreamSend {
+        private final Peer peer;
+        private final PacketStream stream;
+
+        private StreamSend(Peer peer, PacketStream stream) {
+            this.peer = peer;
+            this.stream = stream;
+        }
+    }
 }
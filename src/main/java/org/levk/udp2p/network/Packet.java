@@ -3,25 +3,82 @@ package org.levk.udp2p.network;
 import org.bouncycastle.math.ec.ECPoint;
 import org.levk.udp2p.crypto.SchnorrKey;
 import org.levk.udp2p.crypto.SchnorrSig;
-import org.levk.udp2p.serialization.ENCItem;
-import org.levk.udp2p.serialization.ENCList;
+import org.levk.udp2p.network.peers.NodeId;
+import org.levk.udp2p.serialization.ENCSlice;
 import org.levk.udp2p.serialization.TRENC;
+import org.levk.udp2p.serialization.TRENCWriter;
+import org.levk.udp2p.util.Blake2b256;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import static org.levk.udp2p.crypto.SchnorrKey.liftPoint;
 import static org.levk.udp2p.util.ByteUtils.*;
 import static org.levk.udp2p.util.HashUtil.blake2;
+import static org.levk.udp2p.util.HashUtil.blake2ECC;
 import static org.levk.udp2p.util.HashUtil.blake2omit12;
 
 public class Packet {
+    /* Wire formats. Legacy TRENC encodings always
+     * start with 0x00 (list), compact ones with
+     * their version byte. */
+    public static final int WIRE_TRENC = 0;
+    public static final int WIRE_COMPACT = 1;
+
+    /* Packet types below this are the protocol's own: 0-10 the
+     * original join, peer exchange, ping & ack messages, 11 & 12
+     * path MTU probes, 13 coalesced containers, 14 & 15 node
+     * lookups, 16-18 announce & pull. Applications use this
+     * type & up; lower ones are intercepted by the socket. */
+    public static final int FIRST_APP_TYPE = 19;
+
+    /* Packet flags. Compression & FEC apply to the
+     * whole message, before it was partitioned. */
+    public static final int FLAG_SNAPPY = 0x01;
+    public static final int FLAG_DICTIONARY = 0x02;
+
+    /* Payloads are Reed-Solomon shards, see FecCodec */
+    public static final int FLAG_FEC = 0x04;
+
+    /* Compact (version 1) layout. Everything but
+     * the payload is fixed size, so fields are read
+     * straight from their offsets. The signing hash
+     * covers everything except the sig field. */
+    private static final int COMPACT_VERSION = 0;
+    private static final int COMPACT_FLAGS = 1;
+    private static final int COMPACT_SET_INDEX = 2;
+    private static final int COMPACT_SET_SIZE = 6;
+    private static final int COMPACT_MAGIC = 10;
+    private static final int COMPACT_TARGET = 11;
+    private static final int COMPACT_TYPE = 31;
+    private static final int COMPACT_NETWORK_ID = 35;
+    private static final int COMPACT_MESSAGE_HASH = 39;
+    private static final int COMPACT_PUBKEY = 43;
+    private static final int COMPACT_PAYLOAD_LENGTH = 76;
+    private static final int COMPACT_SIG = 78;
+    public static final int COMPACT_HEADER_LENGTH = 142;
+
+    /* Index of the sig field in the encoding */
+    private static final int SIG_FIELD = 6;
+
+    /* Longest unsigned trailer forwarders append, see encodedLength */
+    public static final int MAX_TRAILER_LENGTH = 2;
+
+    /* Signatures are always 64 bytes */
+    private static final int SIG_LENGTH = 64;
+
+    /* What stands in for the sig field when
+     * computing the raw (signing) hash */
+    private static final byte[] RAW_SIG = TRENC.encode(ZERO_BYTE);
+
+    /* Digests for the raw & full hashes, which
+     * share the prefix up to the sig field */
+    private static final ThreadLocal<Blake2b256> rawDigest = ThreadLocal.withInitial(Blake2b256::new);
+    private static final ThreadLocal<Blake2b256> fullDigest = ThreadLocal.withInitial(Blake2b256::new);
+
     /* The encoding for this packet */
     private byte[] encoded;
 
-    /* The raw encoding for this packet
-     * (empty r and s values */
-    private byte[] raw;
-
     /* Whether the non-encoded fields have
      * had values assigned to them yet */
     private boolean parsed = false;
@@ -51,6 +108,20 @@ public class Packet {
     /* The payload of this packet */
     private byte[] payload;
 
+    /* Where the payload sits in a received
+     * encoding, copied out on first use */
+    private int payloadOffset;
+    private int payloadLength;
+
+    /* Which wire format this packet is
+     * encoded & signed in */
+    private int wireFormat;
+
+    /* FLAG_* bits. In TRENC this is an optional
+     * 11th element, only present when non zero,
+     * so unflagged packets stay readable by older nodes. */
+    private int flags;
+
     /* The signature on this packet
      * Always 64 bytes */
     private byte[] sig;
@@ -73,6 +144,18 @@ public class Packet {
      * filters, and spam protection. */
     private byte[] hash;
 
+    /* Hash of the encoding with the sig
+     * field zeroed. This is what gets signed. */
+    private byte[] rawHash;
+
+    /* Where the signed encoding ends. Forwarders may append
+     * an unsigned trailer after it: [hops][broadcast height + 1],
+     * either byte being optional & 0 when absent. Hops counts
+     * how often the packet was passed on, the height is the
+     * bucket a structured broadcast was delegated through.
+     * Older parsers ignore trailing bytes. */
+    private int encodedLength;
+
     public Packet(byte[] encoded) {
         this.encoded = encoded;
     }
@@ -91,6 +174,16 @@ public class Packet {
     }
 
     public Packet(int setIndex, int setSize, byte magicByte, byte[] target, int packetType, byte[] payload, byte[] messageHash, int networkId, SchnorrKey key) {
+        this(setIndex, setSize, magicByte, target, packetType, payload, messageHash, networkId, key, WIRE_TRENC);
+    }
+
+    public Packet(int setIndex, int setSize, byte magicByte, byte[] target, int packetType, byte[] payload, byte[] messageHash, int networkId, SchnorrKey key, int wireFormat) {
+        this(setIndex, setSize, magicByte, target, packetType, payload, messageHash, networkId, key, wireFormat, 0);
+    }
+
+    public Packet(int setIndex, int setSize, byte magicByte, byte[] target, int packetType, byte[] payload, byte[] messageHash, int networkId, SchnorrKey key, int wireFormat, int flags) {
+        this.wireFormat = wireFormat;
+        this.flags = flags;
         this.setIndex = setIndex;
         this.setSize = setSize;
         this.magicByte = magicByte;
@@ -104,35 +197,102 @@ public class Packet {
 
         parsed = true;
 
-        this.sign(key);
+        if (wireFormat == WIRE_COMPACT) {
+            this.signCompact(key);
+        } else if (wireFormat == WIRE_TRENC) {
+            this.sign(key);
+        } else {
+            throw new RuntimeException("Unknown wire format " + wireFormat);
+        }
+    }
+
+    /* A message unpacked from a container packet (13). It has
+     * no encoding of its own & isn't meant to be sent; the
+     * container's signature, which checkSig() still verifies,
+     * covers it. Its hash is derived from the container's. */
+    Packet(Packet container, int index, int packetType, byte[] payload) {
+        container.parse();
+
+        this.wireFormat = container.wireFormat;
+        this.setIndex = 0;
+        this.setSize = 1;
+        this.magicByte = container.magicByte;
+        this.target = container.target;
+        this.packetType = packetType;
+        this.payload = payload;
+        this.messageHash = blake2ECC(payload);
+        this.senderPubkey = container.senderPubkey;
+        this.sig = container.sig;
+        this.networkId = container.networkId;
+        this.rawHash = container.rawHash;
+        this.hash = blake2(merge(container.hash, intToBytes(index)));
 
-        this.hash = getHash();
+        parsed = true;
+    }
+
+    /* A copy of a parsed packet with different wire bytes */
+    private Packet(Packet from, byte[] encoded) {
+        this.encoded = encoded;
+        this.encodedLength = from.encodedLength;
+        this.packetType = from.packetType;
+        this.setIndex = from.setIndex;
+        this.setSize = from.setSize;
+        this.magicByte = from.magicByte;
+        this.target = from.target;
+        this.payload = from.payload;
+        this.payloadOffset = from.payloadOffset;
+        this.payloadLength = from.payloadLength;
+        this.wireFormat = from.wireFormat;
+        this.flags = from.flags;
+        this.sig = from.sig;
+        this.senderPubkey = from.senderPubkey;
+        this.messageHash = from.messageHash;
+        this.networkId = from.networkId;
+        this.hash = from.hash;
+        this.rawHash = from.rawHash;
+
+        this.parsed = true;
     }
 
     public synchronized void parse() {
         if (parsed) return;
 
-        try {
-            ENCList decPacket = TRENC.decode(encoded);
+        if (encoded.length > 0 && encoded[0] == WIRE_COMPACT) {
+            parseCompact();
+            return;
+        }
 
-            if (decPacket.size() > 10) throw new RuntimeException("Too many encoded elements.");
-            for (ENCItem e : decPacket) {
-                if (e.isList()) throw new RuntimeException("Packet elements should not be lists.");
+        try {
+            this.wireFormat = WIRE_TRENC;
+
+            ENCSlice[] decPacket = TRENC.decodeSlices(encoded);
+
+            if (decPacket.length != 10 && decPacket.length != 11) throw new RuntimeException("Wrong number of encoded elements.");
+            if (decPacket[2].getLength() != 1) throw new RuntimeException("Magic byte must be 1 byte.");
+            if (decPacket[3].getLength() != 20) throw new RuntimeException("Target must be 20 bytes.");
+            if (decPacket[6].getLength() != SIG_LENGTH) throw new RuntimeException("Signature must be 64 bytes.");
+            if (decPacket[7].getLength() != 33) throw new RuntimeException("Pubkey must be 33 bytes.");
+
+            this.setIndex = decPacket[0].getInt();
+            this.setSize = decPacket[1].getInt();
+            this.magicByte = decPacket[2].get(0);
+            this.target = decPacket[3].getBytes();
+            this.packetType = decPacket[4].getInt();
+            this.payloadOffset = decPacket[5].getOffset();
+            this.payloadLength = decPacket[5].getLength();
+            this.sig = decPacket[6].getBytes();
+            this.senderPubkey = decPacket[7].getBytes();
+            this.networkId = decPacket[8].getInt();
+            this.messageHash = decPacket[9].getBytes();
+
+            if (decPacket.length == 11) {
+                if (decPacket[10].getLength() != 1) throw new RuntimeException("Flags must be 1 byte.");
+                this.flags = decPacket[10].get(0) & 0xFF;
             }
 
-            this.setIndex = byteArrayToInt(decPacket.get(0).getEncData());
-            this.setSize = byteArrayToInt(decPacket.get(1).getEncData());
-            this.magicByte = decPacket.get(2).getEncData()[0];
-            this.target = decPacket.get(3).getEncData();
-            this.packetType = byteArrayToInt(decPacket.get(4).getEncData());
-            this.payload = decPacket.get(5).getEncData();
-            this.sig = decPacket.get(6).getEncData();
-            this.senderPubkey = decPacket.get(7).getEncData();
-            this.networkId = byteArrayToInt(decPacket.get(8).getEncData());
-            this.messageHash = decPacket.get(9).getEncData();
-
             this.parsed = true;
-            this.hash = getHash();
+            this.encodedLength = decPacket[decPacket.length - 1].getEnd();
+            hashEncoding(decPacket);
         } catch (Exception e) {
             throw new RuntimeException("Error on parsing encoding", e);
         }
@@ -173,11 +333,18 @@ public class Packet {
         return packetType;
     }
 
-    public byte[] getPayload() {
+    public synchronized byte[] getPayload() {
         parse();
+        if (payload == null) payload = Arrays.copyOfRange(encoded, payloadOffset, payloadOffset + payloadLength);
         return payload;
     }
 
+    /* Length of the payload, without copying it out */
+    public int getPayloadLength() {
+        parse();
+        return (payload != null) ? payload.length : payloadLength;
+    }
+
     public SchnorrSig getSig() {
         parse();
         return new SchnorrSig(sig);
@@ -197,6 +364,10 @@ public class Packet {
         return blake2omit12(this.senderPubkey);
     }
 
+    public NodeId getSenderId() {
+        return new NodeId(getSender());
+    }
+
     public byte[] getMessageHash() {
         parse();
         return messageHash;
@@ -206,58 +377,297 @@ public class Packet {
         this.sign(new SchnorrKey(privkeybytes));
     }
 
+    /* Encodes the packet once with a blank sig, hashes
+     * it, signs, then writes the sig into place. The
+     * prefix before the sig field is only hashed once. */
     private void sign(SchnorrKey key) {
-        this.sig = key.sign(this.getRawHash()).toBytes();
+        int fieldCount = (flags != 0) ? 11 : 10;
+
+        /* Sized exactly, so the encoding is one allocation */
+        int length = TRENCWriter.listHeaderLength(fieldCount)
+                + 4 * TRENCWriter.elementLength(4)
+                + TRENCWriter.elementLength(1)
+                + TRENCWriter.elementLength(target)
+                + TRENCWriter.elementLength(payload)
+                + TRENCWriter.elementLength(SIG_LENGTH)
+                + TRENCWriter.elementLength(senderPubkey)
+                + TRENCWriter.elementLength(messageHash)
+                + ((flags != 0) ? TRENCWriter.elementLength(1) : 0);
+
+        TRENCWriter out = new TRENCWriter(length);
+        out.beginList(fieldCount)
+                .appendInt(setIndex)
+                .appendInt(setSize)
+                .appendByte(magicByte)
+                .append(target)
+                .appendInt(packetType)
+                .append(payload);
+
+        int sigStart = out.getBuffer().position();
+        int sigOffset = out.reserve(SIG_LENGTH);
+        int sigEnd = sigOffset + SIG_LENGTH;
+
+        out.append(senderPubkey)
+                .appendInt(networkId)
+                .append(messageHash);
+
+        if (flags != 0) out.appendByte((byte)flags);
+
+        this.encoded = out.toByteArray();
+        this.encodedLength = encoded.length;
+        int end = encoded.length;
+
+        Blake2b256 raw = rawDigest.get();
+        Blake2b256 full = fullDigest.get();
+
+        raw.reset();
+        raw.update(encoded, 0, sigStart);
+        full.copyFrom(raw);
+
+        raw.update(RAW_SIG);
+        raw.update(encoded, sigEnd, end - sigEnd);
+        this.rawHash = raw.doFinal();
+
+        this.sig = key.sign(rawHash).toBytes();
+        System.arraycopy(sig, 0, encoded, sigOffset, SIG_LENGTH);
+
+        full.update(encoded, sigStart, end - sigStart);
+        this.hash = full.doFinal();
     }
 
-    public boolean checkSig() {
-        parse();
-        return SchnorrKey.verify(sig, senderPubkey, getRawHash());
+    /* Produces the raw & full hashes of a received
+     * encoding in a single pass: the prefix goes into
+     * both, then the sig field into only the full hash */
+    private void hashEncoding(ENCSlice[] fields) {
+        int sigStart = fields[SIG_FIELD].getStart();
+        int sigEnd = fields[SIG_FIELD].getEnd();
+        int end = fields[fields.length - 1].getEnd();
+
+        Blake2b256 raw = rawDigest.get();
+        Blake2b256 full = fullDigest.get();
+
+        raw.reset();
+        raw.update(encoded, 0, sigStart);
+        full.copyFrom(raw);
+
+        raw.update(RAW_SIG);
+        full.update(encoded, sigStart, sigEnd - sigStart);
+
+        raw.update(encoded, sigEnd, end - sigEnd);
+        full.update(encoded, sigEnd, end - sigEnd);
+
+        this.rawHash = raw.doFinal();
+        this.hash = full.doFinal();
     }
 
-    private byte[] getRawHash() {
+    /* Compact counterpart of sign(): the header is written
+     * by offset & the sig is filled in after hashing */
+    private void signCompact(SchnorrKey key) {
+        if (target.length != 20) throw new RuntimeException("Compact packets need a 20 byte target.");
+        if (messageHash.length != 4) throw new RuntimeException("Compact packets need a 4 byte message hash.");
+        if (payload.length > 0xFFFF) throw new RuntimeException("Payload too large for a compact packet.");
+
+        this.encoded = new byte[COMPACT_HEADER_LENGTH + payload.length];
+        this.encodedLength = encoded.length;
+
+        ByteBuffer out = ByteBuffer.wrap(encoded);
+        out.put(COMPACT_VERSION, (byte)WIRE_COMPACT);
+        out.put(COMPACT_FLAGS, (byte)flags);
+        out.putInt(COMPACT_SET_INDEX, setIndex);
+        out.putInt(COMPACT_SET_SIZE, setSize);
+        out.put(COMPACT_MAGIC, magicByte);
+        System.arraycopy(target, 0, encoded, COMPACT_TARGET, 20);
+        out.putInt(COMPACT_TYPE, packetType);
+        out.putInt(COMPACT_NETWORK_ID, networkId);
+        System.arraycopy(messageHash, 0, encoded, COMPACT_MESSAGE_HASH, 4);
+        System.arraycopy(senderPubkey, 0, encoded, COMPACT_PUBKEY, 33);
+        out.putShort(COMPACT_PAYLOAD_LENGTH, (short)payload.length);
+        System.arraycopy(payload, 0, encoded, COMPACT_HEADER_LENGTH, payload.length);
+
+        Blake2b256 raw = rawDigest.get();
+        Blake2b256 full = fullDigest.get();
+
+        raw.reset();
+        raw.update(encoded, 0, COMPACT_SIG);
+        full.copyFrom(raw);
+
+        raw.update(encoded, COMPACT_HEADER_LENGTH, payload.length);
+        this.rawHash = raw.doFinal();
+
+        this.sig = key.sign(rawHash).toBytes();
+        System.arraycopy(sig, 0, encoded, COMPACT_SIG, SIG_LENGTH);
+
+        full.update(encoded, COMPACT_SIG, encoded.length - COMPACT_SIG);
+        this.hash = full.doFinal();
+    }
+
+    /* Every field is at a fixed offset, so this only
+     * copies out the small byte fields & hashes once */
+    private void parseCompact() {
+        if (encoded.length < COMPACT_HEADER_LENGTH) throw new RuntimeException("Compact packet shorter than its header.");
+
+        ByteBuffer in = ByteBuffer.wrap(encoded);
+
+        int length = in.getShort(COMPACT_PAYLOAD_LENGTH) & 0xFFFF;
+        if (COMPACT_HEADER_LENGTH + length > encoded.length) throw new RuntimeException("Compact packet is truncated.");
+
+        this.wireFormat = WIRE_COMPACT;
+        this.flags = in.get(COMPACT_FLAGS) & 0xFF;
+        this.setIndex = in.getInt(COMPACT_SET_INDEX);
+        this.setSize = in.getInt(COMPACT_SET_SIZE);
+        this.magicByte = in.get(COMPACT_MAGIC);
+        this.target = Arrays.copyOfRange(encoded, COMPACT_TARGET, COMPACT_TARGET + 20);
+        this.packetType = in.getInt(COMPACT_TYPE);
+        this.networkId = in.getInt(COMPACT_NETWORK_ID);
+        this.messageHash = Arrays.copyOfRange(encoded, COMPACT_MESSAGE_HASH, COMPACT_MESSAGE_HASH + 4);
+        this.senderPubkey = Arrays.copyOfRange(encoded, COMPACT_PUBKEY, COMPACT_PUBKEY + 33);
+        this.sig = Arrays.copyOfRange(encoded, COMPACT_SIG, COMPACT_SIG + SIG_LENGTH);
+        this.payloadOffset = COMPACT_HEADER_LENGTH;
+        this.payloadLength = length;
+
+        this.parsed = true;
+
+        int end = COMPACT_HEADER_LENGTH + length;
+        this.encodedLength = end;
+
+        Blake2b256 raw = rawDigest.get();
+        Blake2b256 full = fullDigest.get();
+
+        raw.reset();
+        raw.update(encoded, 0, COMPACT_SIG);
+        full.copyFrom(raw);
+
+        full.update(encoded, COMPACT_SIG, SIG_LENGTH);
+
+        raw.update(encoded, COMPACT_HEADER_LENGTH, length);
+        full.update(encoded, COMPACT_HEADER_LENGTH, length);
+
+        this.rawHash = raw.doFinal();
+        this.hash = full.doFinal();
+    }
+
+    /* The same packet, signed & encoded in another
+     * wire format. Only possible for our own packets. */
+    public Packet reencode(int wireFormat, SchnorrKey key) {
         parse();
-        byte[] plainMsg = this.getEncodedRaw();
-        return blake2(plainMsg);
+        if (this.wireFormat == wireFormat) return this;
+
+        if (!Arrays.equals(key.getPubkey(), senderPubkey)) throw new RuntimeException("Can only re-encode packets signed with the given key.");
+
+        return new Packet(setIndex, setSize, magicByte, target, packetType, getPayload(), messageHash, networkId, key, wireFormat, flags);
     }
 
-    public byte[] getHash() {
-        if(hash != null) return hash;
+    /* Largest payload whose encoding fits in a datagram of
+     * datagramLength bytes, for a 20 byte target & 4 byte
+     * message hash. TRENC assumes the flags element is there. */
+    public static int maxPayload(int datagramLength, int wireFormat) {
+        if (wireFormat == WIRE_COMPACT) {
+            return Math.min(datagramLength - COMPACT_HEADER_LENGTH, 0xFFFF);
+        }
 
+        int fixed = TRENCWriter.listHeaderLength(11)
+                + 4 * TRENCWriter.elementLength(4)
+                + 2 * TRENCWriter.elementLength(1)
+                + TRENCWriter.elementLength(20)
+                + TRENCWriter.elementLength(SIG_LENGTH)
+                + TRENCWriter.elementLength(33)
+                + TRENCWriter.elementLength(4);
+
+        /* The payload's length header grows with it */
+        int payload = datagramLength - fixed;
+        while (payload > 0 && fixed + TRENCWriter.elementLength(payload) > datagramLength) {
+            payload--;
+        }
+
+        return payload;
+    }
+
+    /* Hops taken so far, from the unsigned trailer */
+    public int getHops() {
         parse();
-        byte[] plainMsg = this.getEncoded();
-        return blake2(plainMsg);
+        if (encoded == null || encoded.length <= encodedLength) return 0;
+        return encoded[encodedLength] & 0xFF;
     }
 
-    private byte[] getEncodedRaw() {
+    /* Structured broadcast height from the trailer, -1 when absent */
+    public int getBroadcastHeight() {
         parse();
-        if (raw != null) return raw;
+        if (encoded == null || encoded.length <= encodedLength + 1) return -1;
+        return (encoded[encodedLength + 1] & 0xFF) - 1;
+    }
 
-        byte[] magic = new byte[1];
-        magic[0] = this.magicByte;
+    /* The same signed bytes with the hop count one higher,
+     * for passing the packet on. Nothing is re-signed or
+     * re-encoded, the hash & signature stay valid. */
+    public Packet forwarded() {
+        return forwarded(getBroadcastHeight());
+    }
 
-        raw = TRENC.encode(intToBytes(setIndex), intToBytes(setSize), magic, target, intToBytes(packetType), payload, ZERO_BYTE, senderPubkey, intToBytes(networkId), messageHash);
+    /* forwarded(), delegating a broadcast at the given height */
+    public Packet forwarded(int height) {
+        return withTrailer(Math.min(getHops() + 1, 0xFF), height);
+    }
 
-        return raw;
+    /* Our own packet, first sent out in a broadcast at the given height */
+    public Packet delegated(int height) {
+        return withTrailer(getHops(), height);
     }
 
-    public byte[] getEncoded() {
-        if (encoded != null) return encoded;
+    private Packet withTrailer(int hops, int height) {
+        parse();
+        if (encoded == null) throw new RuntimeException("Unpacked messages can't be forwarded.");
+        if (height > 0xFE) throw new RuntimeException("Broadcast height out of range.");
 
-        byte[] magic = new byte[1];
-        magic[0] = this.magicByte;
+        byte[] out = Arrays.copyOf(encoded, encodedLength + ((height >= 0) ? 2 : 1));
+        out[encodedLength] = (byte)hops;
+        if (height >= 0) out[encodedLength + 1] = (byte)(height + 1);
 
-        this.encoded = TRENC.encode(intToBytes(setIndex), intToBytes(setSize), magic, target, intToBytes(packetType), payload, sig, senderPubkey, intToBytes(networkId), messageHash);
+        return new Packet(this, out);
+    }
 
-        this.hash = this.getHash();
+    public int getFlags() {
+        parse();
+        return flags;
+    }
+
+    public int getWireFormat() {
+        parse();
+        return wireFormat;
+    }
+
+    public boolean checkSig() {
+        parse();
+        return SchnorrKey.verify(sig, senderPubkey, getRawHash());
+    }
+
+    private byte[] getRawHash() {
+        parse();
+        return rawHash;
+    }
+
+    public byte[] getHash() {
+        parse();
+        return hash;
+    }
 
+    public byte[] getEncoded() {
         return encoded;
     }
 
+    /* Copies the wire bytes into out, e.g. a direct send buffer */
+    public void writeTo(ByteBuffer out) {
+        out.put(encoded);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (!(o instanceof Packet)) return false;
 
+        /* Unpacked messages have no encoding to compare */
+        if (this.getEncoded() == null || ((Packet)o).getEncoded() == null) {
+            return Arrays.equals(((Packet)o).getHash(), this.getHash());
+        }
+
         return Arrays.equals(((Packet)o).getEncoded(), this.getEncoded());
     }
 }
@@ -2,22 +2,56 @@ package org.levk.udp2p.network;
 
 import org.levk.udp2p.crypto.SchnorrKey;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 
 import static org.levk.udp2p.util.HashUtil.blake2ECC;
 
-public class PacketSet {
+public class PacketSet implements Closeable {
     private static final SecureRandom rand = new SecureRandom();
-    private static final int MAX_PACKET_PAYLOAD = 872;
+    static final int MAX_PACKET_PAYLOAD = 872;
+
+    /* Inbound messages larger than this are reassembled
+     * in a memory mapped temp file instead of the heap */
+    public static final long SPILL_THRESHOLD = 64L << 20;
+
+    /* Inbound messages may be at most this long, so a remote
+     * set size can't make us allocate more than it could fill */
+    public static final long MAX_MESSAGE_LENGTH = 1L << 32;
+    public static final int MAX_SET_SIZE = (int)(MAX_MESSAGE_LENGTH / MAX_PACKET_PAYLOAD);
 
     private int packetType;
     private Packet[] packets;
     private int packetCount = 0;
+    private int setSize;
 
     private boolean complete;
 
+    /* Set when the packets are FEC coded, in which
+     * case each block only needs its data shard count */
+    private FecCodec fec;
+    private int[] blockCounts;
+    private int blocksComplete;
+
+    /* Set when reassembling into a spill file, in which case
+     * packets is null & only received indexes are kept. Every
+     * chunk but the last is chunkSize bytes, so chunks go in at
+     * setIndex * chunkSize. chunkSize is learned from the first
+     * chunk that isn't the last; the last is held until then. */
+    private SpillFile spill;
+    private BitSet received;
+    private int chunkSize;
+    private Packet heldLast;
+    private long spillLength;
+
     public PacketSet(int packetType, byte[] data, int networkId, byte[] privkey) {
         this(packetType, new byte[20], data, networkId, new SchnorrKey(privkey));
     }
@@ -31,39 +65,160 @@ public class PacketSet {
     }
 
     public PacketSet(int packetType, byte[] target, byte[] data, int networkId, SchnorrKey key) {
+        this(packetType, target, data, networkId, key, 0);
+    }
+
+    /* With parityPerBlock > 0, every block of up to 256
+     * packets carries that many Reed-Solomon repair packets */
+    public PacketSet(int packetType, byte[] target, byte[] data, int networkId, SchnorrKey key, int parityPerBlock) {
+        this(packetType, target, data, networkId, key, parityPerBlock, Packet.WIRE_TRENC, MAX_PACKET_PAYLOAD);
+    }
+
+    /* Packets are encoded in wireFormat with payloads of at most
+     * maxPayload bytes, e.g. as discovered for one peer's path */
+    public PacketSet(int packetType, byte[] target, byte[] data, int networkId, SchnorrKey key, int parityPerBlock, int wireFormat, int maxPayload) {
+        this(packetType, target, data, networkId, key, parityPerBlock, wireFormat, maxPayload, false);
+    }
+
+    /* With compress, compressible messages take fewer packets.
+     * Only for peers that advertised Peer.CAP_COMPRESSION, as
+     * older nodes can't read the flags it sets. */
+    public PacketSet(int packetType, byte[] target, byte[] data, int networkId, SchnorrKey key, int parityPerBlock, int wireFormat, int maxPayload, boolean compress) {
+        if (maxPayload <= FecCodec.HEADER_LENGTH) throw new RuntimeException("Packet payloads must be larger than " + FecCodec.HEADER_LENGTH + " bytes.");
+
         byte[] messageHash = blake2ECC(data);
 
         this.packetType = packetType;
 
-        byte[][] temp = partition(data);
+        int flags = 0;
+        byte[] body = data;
+        if (compress) {
+            PayloadCompression.Packed packed = PayloadCompression.pack(data, networkId);
+            flags = packed.getFlags();
+            body = packed.getBody();
+        }
+
+        byte[][] temp;
+        if (parityPerBlock > 0) {
+            flags |= Packet.FLAG_FEC;
+            temp = FecCodec.forMessage(body.length, parityPerBlock, maxPayload).encode(body);
+        } else {
+            temp = partition(body, maxPayload);
+        }
 
         packets = new Packet[temp.length];
+        setSize = temp.length;
 
         for (int i = 0; i < temp.length; i++) {
-            packets[i] = new Packet(i, temp.length, randomByte(), target, packetType, temp[i], messageHash, networkId, key);
+            packets[i] = new Packet(i, temp.length, randomByte(), target, packetType, temp[i], messageHash, networkId, key, wireFormat, flags);
             packetCount++;
         }
 
         complete = true;
     }
 
+    PacketSet(int packetType, Packet[] packets) {
+        this.packetType = packetType;
+        this.packets = packets;
+        this.packetCount = packets.length;
+        this.setSize = packets.length;
+
+        updateComplete();
+    }
+
     public PacketSet(Packet packet) {
-        packets = new Packet[packet.getSetSize()];
-        packets[packet.getSetIndex()] = packet;
-        packetCount++;
+        this(packet, SPILL_THRESHOLD);
+    }
+
+    /* Uncompressed, non FEC messages estimated at over
+     * spillThreshold bytes are reassembled on disk */
+    public PacketSet(Packet packet, long spillThreshold) {
+        setSize = packet.getSetSize();
         packetType = packet.getPacketType();
 
-        updateComplete();
+        if (setSize < 1) throw new RuntimeException("Set size must be positive.");
+        if (setSize > MAX_SET_SIZE) throw new RuntimeException("Set size " + setSize + " is over the limit.");
+
+        if ((packet.getFlags() & Packet.FLAG_FEC) != 0) {
+            fec = FecCodec.fromPayload(packet.getPayload());
+            if (fec.getSetSize() != setSize) throw new RuntimeException("FEC layout doesn't match the set size.");
+
+            blockCounts = new int[fec.blockCount()];
+        }
+
+        if (packet.getFlags() == 0 && (long)setSize * packet.getPayloadLength() > spillThreshold) {
+            received = new BitSet(setSize);
+        } else {
+            packets = new Packet[setSize];
+        }
+
+        add(packet);
     }
 
-    public void add(Packet packet) {
+    public synchronized void add(Packet packet) {
         if (complete) return;
 
+        if (received != null) {
+            addSpilled(packet);
+            return;
+        }
+
         if (packets[packet.getSetIndex()] == null) {
             packets[packet.getSetIndex()] = packet;
             packetCount++;
 
+            if (fec != null) {
+                int b = fec.blockOf(packet.getSetIndex());
+                blockCounts[b]++;
+                if (blockCounts[b] == fec.blockDataCount(b)) blocksComplete++;
+            }
+
+            updateComplete();
+        }
+    }
+
+    private void addSpilled(Packet packet) {
+        int index = packet.getSetIndex();
+        if (index < 0 || index >= setSize || received.get(index)) return;
+
+        boolean last = (index == setSize - 1);
+
+        try {
+            if (chunkSize == 0) {
+                if (last && setSize > 1) {
+                    heldLast = packet;
+                    return;
+                }
+
+                chunkSize = packet.getPayloadLength();
+                if (chunkSize < 1) throw new RuntimeException("Empty chunk in a spilled message.");
+                if ((long)setSize * chunkSize > MAX_MESSAGE_LENGTH) throw new RuntimeException("Spilled message would be over the limit.");
+
+                spill = new SpillFile((long)setSize * chunkSize);
+            }
+
+            int length = packet.getPayloadLength();
+            if ((!last && length != chunkSize) || (last && length > chunkSize)) throw new RuntimeException("Chunk " + index + " has the wrong length.");
+
+            spill.write((long)index * chunkSize, packet.getPayload());
+            received.set(index);
+            packetCount++;
+
+            if (last) spillLength = (long)index * chunkSize + length;
+
+            /* The held last chunk completes & finishes the set
+             * itself, if anything does */
+            if (heldLast != null) {
+                Packet held = heldLast;
+                heldLast = null;
+                addSpilled(held);
+                return;
+            }
+
             updateComplete();
+            if (complete) spill.finish(spillLength);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write chunk to the spill file", e);
         }
     }
 
@@ -72,7 +227,11 @@ public class PacketSet {
     }
 
     private void updateComplete() {
-        complete = (packetCount == packets.length);
+        if (fec != null) {
+            complete = (blocksComplete == blockCounts.length);
+        } else {
+            complete = (packetCount == setSize);
+        }
     }
 
     public boolean isComplete() {
@@ -80,6 +239,8 @@ public class PacketSet {
     }
 
     public List<Packet> getPackets() {
+        if (packets == null) throw new RuntimeException("Spilled PacketSets don't keep their packets.");
+
         List<Packet> temp = new ArrayList<>();
 
         for (int i = 0; i < packets.length; i++) {
@@ -89,31 +250,113 @@ public class PacketSet {
         return temp;
     }
 
-    public Packet getRandom() {
-        return packets[rand.nextInt(packets.length)];
+    /* The messageHash every packet in the set carries */
+    public byte[] getMessageHash() {
+        if (packets == null) throw new RuntimeException("Spilled PacketSets don't keep their packets.");
+
+        for (Packet p : packets) {
+            if (p != null) return p.getMessageHash();
+        }
+
+        throw new RuntimeException("PacketSet is empty.");
     }
 
+    public boolean isSpilled() {
+        return received != null;
+    }
 
+    /* Length of a spilled message */
+    public long getLength() {
+        if (spill == null || !complete) throw new RuntimeException("Only complete spilled PacketSets have a length.");
+        return spillLength;
+    }
 
-    private static byte[][] partition(byte[] in) {
-        int partitionCount =  (int)Math.ceil((double)in.length / (double) PacketSet.MAX_PACKET_PAYLOAD);
+    /* The spilled message's file, which is deleted once
+     * the channel (or this PacketSet) is closed */
+    public FileChannel getChannel() {
+        if (spill == null || !complete) throw new RuntimeException("PacketSet is not a complete spilled message.");
+        return spill.getChannel();
+    }
 
-        byte[][] temp = new byte[partitionCount][PacketSet.MAX_PACKET_PAYLOAD];
+    /* A read only mapping of a spilled message under 2 GiB.
+     * Stays valid after the file is closed. */
+    public MappedByteBuffer getMappedData() throws IOException {
+        if (spill == null || !complete) throw new RuntimeException("PacketSet is not a complete spilled message.");
+        return spill.map();
+    }
 
-        for (int i = 0; i < partitionCount; i++) {
-            if (in.length < (PacketSet.MAX_PACKET_PAYLOAD * (i + 1))) {
-                temp[i] = new byte[(in.length - (PacketSet.MAX_PACKET_PAYLOAD * i))];
+    /* Reassembles & decompresses the message */
+    public byte[] getData() throws IOException {
+        if (!complete) throw new RuntimeException("PacketSet is not complete.");
+
+        if (spill != null) {
+            if (spillLength > Integer.MAX_VALUE) throw new RuntimeException("Message too large for the heap, use getChannel().");
+
+            byte[] out = new byte[(int)spillLength];
+            ByteBuffer view = ByteBuffer.wrap(out);
+            while (view.hasRemaining()) {
+                if (spill.getChannel().read(view, view.position()) < 0) throw new IOException("Spill file ended early.");
             }
 
-            for(int j = 0; (j < PacketSet.MAX_PACKET_PAYLOAD && (PacketSet.MAX_PACKET_PAYLOAD * i + j) < in.length); j++) {
-                temp[i][j] = in[(PacketSet.MAX_PACKET_PAYLOAD * i + j)];
+            return out;
+        }
+
+        Packet first = null;
+        for (Packet p : packets) {
+            if (p != null) {
+                first = p;
+                break;
             }
         }
 
+        if ((first.getFlags() & Packet.FLAG_FEC) != 0) {
+            byte[] body = FecCodec.fromPayload(first.getPayload()).decode(packets);
+            return PayloadCompression.decompress(body, first.getFlags(), first.getNetworkId());
+        }
+
+        int length = 0;
+        for (Packet p : packets) {
+            length += p.getPayloadLength();
+        }
+
+        byte[] body = new byte[length];
+        int pos = 0;
+        for (Packet p : packets) {
+            byte[] payload = p.getPayload();
+            System.arraycopy(payload, 0, body, pos, payload.length);
+            pos += payload.length;
+        }
+
+        return PayloadCompression.decompress(body, first.getFlags(), first.getNetworkId());
+    }
+
+    public Packet getRandom() {
+        if (packets == null) throw new RuntimeException("Spilled PacketSets don't keep their packets.");
+        return packets[rand.nextInt(packets.length)];
+    }
+
+    /* Deletes the spill file, if any */
+    @Override
+    public void close() throws IOException {
+        if (spill != null) spill.close();
+    }
+
+
+
+    private static byte[][] partition(byte[] in, int maxPayload) {
+        int partitionCount =  (int)Math.ceil((double)in.length / (double)maxPayload);
+
+        byte[][] temp = new byte[partitionCount][];
+
+        for (int i = 0; i < partitionCount; i++) {
+            int from = maxPayload * i;
+            temp[i] = Arrays.copyOfRange(in, from, Math.min(from + maxPayload, in.length));
+        }
+
         return temp;
     }
 
-    private static byte randomByte() {
+    static byte randomByte() {
         byte[] by = new byte[1];
         rand.nextBytes(by);
         return by[0];
@@ -0,0 +1,189 @@
+package org.levk.udp2p.network;
+
+import org.levk.udp2p.crypto.SchnorrKey;
+import org.levk.udp2p.util.Blake2b256;
+import org.levk.udp2p.util.HashUtil;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/* A PacketSet whose packets are cut & signed one at a time,
+ * on demand, from a file, a mapped region or a stream. The
+ * message is never held on the heap as a whole.
+ *
+ * messageHash goes in every packet header, so the source is
+ * hashed in one streaming pass before the first packet. An
+ * InputStream can only be read once, so it is spooled to a
+ * temp file during that same pass. Messages are sent
+ * uncompressed. */
+public class PacketStream implements Closeable {
+    private static final int READ_BUFFER_LENGTH = 64 * 1024;
+
+    private final int packetType;
+    private final byte[] target;
+    private final int networkId;
+    private final SchnorrKey key;
+
+    /* Exactly one of channel & region is set */
+    private final FileChannel channel;
+    private final ByteBuffer region;
+
+    /* Deleted on close, when the source was spooled */
+    private final Path spool;
+
+    private final long length;
+    private final int setSize;
+    private final byte[] messageHash;
+
+    private int nextIndex = 0;
+
+    private PacketStream(int packetType, byte[] target, int networkId, SchnorrKey key, FileChannel channel, ByteBuffer region, Path spool, long length, byte[] messageHash) {
+        this.packetType = packetType;
+        this.target = target;
+        this.networkId = networkId;
+        this.key = key;
+        this.channel = channel;
+        this.region = region;
+        this.spool = spool;
+        this.length = length;
+        this.messageHash = messageHash;
+
+        long count = (length + PacketSet.MAX_PACKET_PAYLOAD - 1) / PacketSet.MAX_PACKET_PAYLOAD;
+        if (count > PacketSet.MAX_SET_SIZE) throw new RuntimeException("Message too large for one PacketSet.");
+        this.setSize = (int)count;
+    }
+
+    /* Streams the channel's contents from 0 to size(). Reads are
+     * positional, so the channel's own position is untouched. */
+    public static PacketStream of(int packetType, byte[] target, FileChannel channel, int networkId, SchnorrKey key) throws IOException {
+        long length = channel.size();
+
+        Blake2b256 md = HashUtil.digest();
+        ByteBuffer buf = ByteBuffer.allocateDirect(READ_BUFFER_LENGTH);
+
+        long pos = 0;
+        while (pos < length) {
+            buf.clear();
+            int read = channel.read(buf, pos);
+            if (read < 0) throw new EOFException("Channel ended before its size.");
+
+            buf.flip();
+            md.update(buf);
+            pos += read;
+        }
+
+        return new PacketStream(packetType, target, networkId, key, channel, null, null, length, ecc(md));
+    }
+
+    /* Streams the remaining bytes of region, e.g. a MappedByteBuffer */
+    public static PacketStream of(int packetType, byte[] target, ByteBuffer region, int networkId, SchnorrKey key) {
+        ByteBuffer view = region.slice();
+
+        Blake2b256 md = HashUtil.digest();
+        md.update(view.duplicate());
+
+        return new PacketStream(packetType, target, networkId, key, null, view, null, view.remaining(), ecc(md));
+    }
+
+    /* Reads in to the end, hashing & spooling it to a temp file */
+    public static PacketStream of(int packetType, byte[] target, InputStream in, int networkId, SchnorrKey key) throws IOException {
+        Path spool = Files.createTempFile("udp2p-send", ".tmp");
+        FileChannel channel = null;
+
+        try {
+            channel = FileChannel.open(spool, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            Blake2b256 md = HashUtil.digest();
+            byte[] buf = new byte[READ_BUFFER_LENGTH];
+            long length = 0;
+
+            int read;
+            while ((read = in.read(buf)) >= 0) {
+                md.update(buf, 0, read);
+
+                ByteBuffer out = ByteBuffer.wrap(buf, 0, read);
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+
+                length += read;
+            }
+
+            return new PacketStream(packetType, target, networkId, key, channel, null, spool, length, ecc(md));
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) channel.close();
+            Files.deleteIfExists(spool);
+            throw e;
+        }
+    }
+
+    public int getSetSize() {
+        return setSize;
+    }
+
+    public byte[] getMessageHash() {
+        return messageHash;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public synchronized boolean hasNext() {
+        return nextIndex < setSize;
+    }
+
+    /* Reads, signs & returns the next packet in setIndex order */
+    public synchronized Packet next() throws IOException {
+        if (nextIndex >= setSize) throw new RuntimeException("No packets left in stream.");
+
+        Packet p = get(nextIndex);
+        nextIndex++;
+        return p;
+    }
+
+    /* Builds the packet at any index, for retransmits */
+    public Packet get(int index) throws IOException {
+        if (index < 0 || index >= setSize) throw new IndexOutOfBoundsException("No packet " + index + " in a set of " + setSize);
+
+        long from = (long)index * PacketSet.MAX_PACKET_PAYLOAD;
+        byte[] chunk = new byte[(int)Math.min(PacketSet.MAX_PACKET_PAYLOAD, length - from)];
+
+        if (region != null) {
+            ByteBuffer view = region.duplicate();
+            view.position((int)from);
+            view.get(chunk);
+        } else {
+            ByteBuffer out = ByteBuffer.wrap(chunk);
+            long pos = from;
+            while (out.hasRemaining()) {
+                int read = channel.read(out, pos);
+                if (read < 0) throw new EOFException("Source shrank while streaming.");
+                pos += read;
+            }
+        }
+
+        return new Packet(index, setSize, PacketSet.randomByte(), target, packetType, chunk, messageHash, networkId, key);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (spool != null) {
+            channel.close();
+            Files.deleteIfExists(spool);
+        }
+    }
+
+    private static byte[] ecc(Blake2b256 md) {
+        byte[] hash = md.doFinal();
+        return Arrays.copyOfRange(hash, 28, 32);
+    }
+}
@@ -0,0 +1,228 @@
+package org.levk.udp2p.network;
+
+import org.xerial.snappy.Snappy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* Decides whether a message is worth compressing before it is
+ * partitioned, & undoes it once the PacketSet is reassembled.
+ * Which codec was used is carried in the packet flags. */
+public class PayloadCompression {
+    /* Below this, compression can't save a packet */
+    private static final int MIN_COMPRESS_LENGTH = 64;
+
+    /* Bytes taken from each of up to SAMPLE_COUNT
+     * places in the message to estimate the ratio */
+    private static final int SAMPLE_LENGTH = 4096;
+    private static final int SAMPLE_COUNT = 3;
+
+    /* Compress only if the samples shrink to at most 7/8 */
+    private static final int WORTHWHILE_NUMERATOR = 7;
+    private static final int WORTHWHILE_DENOMINATOR = 8;
+
+    /* Refuse to inflate messages past this size */
+    private static final int MAX_DECOMPRESSED_LENGTH = 1 << 30;
+
+    /* Shared dictionaries per networkId. Snappy has no
+     * dictionary support, so these go through Deflate. */
+    private static final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<>();
+
+    /* Direct buffers for Snappy's ByteBuffer API, grown as needed
+     * up to MAX_CACHED_LENGTH. Longer inputs go through heap arrays,
+     * so one large message doesn't pin its size in direct memory
+     * on every thread that compressed it. */
+    private static final int MAX_CACHED_LENGTH = 1 << 16;
+    private static final ThreadLocal<ByteBuffer[]> directBuffers = ThreadLocal.withInitial(() -> new ByteBuffer[2]);
+
+    public static void registerDictionary(int networkId, byte[] dictionary) {
+        dictionaries.put(networkId, dictionary);
+    }
+
+    public static void removeDictionary(int networkId) {
+        dictionaries.remove(networkId);
+    }
+
+    /* Compresses data if that's worthwhile & smaller, else
+     * hands it back as is with no flags */
+    public static Packed pack(byte[] data, int networkId) {
+        int flags;
+        byte[] body;
+        try {
+            flags = choose(data, networkId);
+            body = compress(data, flags, networkId);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to compress message", e);
+        }
+
+        if (body.length >= data.length) return new Packed(0, data);
+
+        return new Packed(flags, body);
+    }
+
+    /* Which Packet.FLAG_* to compress data with, or 0 to send it raw */
+    public static int choose(byte[] data, int networkId) throws IOException {
+        if (data.length < MIN_COMPRESS_LENGTH) return 0;
+
+        int sampled = 0;
+        int compressed = 0;
+
+        int samples = Math.min(SAMPLE_COUNT, Math.max(1, data.length / SAMPLE_LENGTH));
+        int stride = (samples > 1) ? (data.length - SAMPLE_LENGTH) / (samples - 1) : 0;
+
+        for (int i = 0; i < samples; i++) {
+            int off = i * stride;
+            int len = Math.min(SAMPLE_LENGTH, data.length - off);
+
+            sampled += len;
+            compressed += snappy(data, off, len).remaining();
+        }
+
+        if (compressed * WORTHWHILE_DENOMINATOR > sampled * WORTHWHILE_NUMERATOR) return 0;
+
+        return dictionaries.containsKey(networkId) ? Packet.FLAG_DICTIONARY : Packet.FLAG_SNAPPY;
+    }
+
+    public static byte[] compress(byte[] data, int flags, int networkId) throws IOException {
+        if ((flags & Packet.FLAG_DICTIONARY) != 0) {
+            return deflate(data, dictionary(networkId));
+        }
+
+        if ((flags & Packet.FLAG_SNAPPY) != 0) {
+            ByteBuffer out = snappy(data, 0, data.length);
+            byte[] temp = new byte[out.remaining()];
+            out.get(temp);
+            return temp;
+        }
+
+        return data;
+    }
+
+    public static byte[] decompress(byte[] data, int flags, int networkId) throws IOException {
+        if ((flags & Packet.FLAG_DICTIONARY) != 0) {
+            return inflate(data, dictionary(networkId));
+        }
+
+        if ((flags & Packet.FLAG_SNAPPY) != 0) {
+            if (Snappy.uncompressedLength(data) > MAX_DECOMPRESSED_LENGTH) throw new IOException("Decompressed message too large.");
+            return Snappy.uncompress(data);
+        }
+
+        return data;
+    }
+
+    /* Compresses data[off, off + len) into a thread local direct
+     * buffer, returned flipped & ready to read */
+    private static ByteBuffer snappy(byte[] data, int off, int len) throws IOException {
+        if (len > MAX_CACHED_LENGTH) {
+            byte[] out = new byte[Snappy.maxCompressedLength(len)];
+            int outLength = Snappy.rawCompress(data, off, len, out, 0);
+            return ByteBuffer.wrap(out, 0, outLength);
+        }
+
+        ByteBuffer[] buffers = directBuffers.get();
+
+        if (buffers[0] == null || buffers[0].capacity() < len) {
+            buffers[0] = ByteBuffer.allocateDirect(len);
+        }
+
+        int maxLength = Snappy.maxCompressedLength(len);
+        if (buffers[1] == null || buffers[1].capacity() < maxLength) {
+            buffers[1] = ByteBuffer.allocateDirect(maxLength);
+        }
+
+        ByteBuffer in = buffers[0];
+        in.clear();
+        in.put(data, off, len);
+        in.flip();
+
+        ByteBuffer out = buffers[1];
+        out.clear();
+
+        Snappy.compress(in, out);
+        return out;
+    }
+
+    /* A message body with the FLAG_* bits it was compressed with */
+    public static class Packed {
+        private final int flags;
+        private final byte[] body;
+
+        private Packed(int flags, byte[] body) {
+            this.flags = flags;
+            this.body = body;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    private static byte[] dictionary(int networkId) throws IOException {
+        byte[] dictionary = dictionaries.get(networkId);
+        if (dictionary == null) throw new IOException("No compression dictionary for network " + networkId);
+        return dictionary;
+    }
+
+    private static byte[] deflate(byte[] data, byte[] dictionary) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+        try {
+            deflater.setDictionary(dictionary);
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) {
+                int len = deflater.deflate(buf);
+                out.write(buf, 0, len);
+            }
+
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, byte[] dictionary) throws IOException {
+        Inflater inflater = new Inflater();
+
+        try {
+            inflater.setInput(data);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+            byte[] buf = new byte[8192];
+            while (!inflater.finished()) {
+                int len = inflater.inflate(buf);
+
+                if (len == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.needsInput()) {
+                        throw new IOException("Compressed message is truncated.");
+                    }
+                }
+
+                out.write(buf, 0, len);
+                if (out.size() > MAX_DECOMPRESSED_LENGTH) throw new IOException("Decompressed message too large.");
+            }
+
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed message is corrupt.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
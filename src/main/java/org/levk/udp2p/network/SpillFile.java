@@ -0,0 +1,97 @@
+package org.levk.udp2p.network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/* A sparse temp file that an inbound message is written
+ * into by offset, through memory mapped windows. Windows
+ * are mapped as chunks land in them, so only the parts
+ * written so far take up pages. The file is deleted once
+ * its channel is closed. */
+class SpillFile implements Closeable {
+    private static final long WINDOW_LENGTH = 1L << 28;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] windows;
+    private final long capacity;
+
+    private long length = -1;
+
+    SpillFile(long capacity) throws IOException {
+        Path path = Files.createTempFile("udp2p-recv", ".tmp");
+
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.SPARSE, StandardOpenOption.DELETE_ON_CLOSE);
+        this.capacity = capacity;
+        this.windows = new MappedByteBuffer[(int)((capacity + WINDOW_LENGTH - 1) / WINDOW_LENGTH)];
+    }
+
+    /* Copies data in at pos, across windows if it straddles them */
+    synchronized void write(long pos, byte[] data) throws IOException {
+        if (length >= 0) throw new RuntimeException("Spill file is already finished.");
+        if (pos < 0 || pos + data.length > capacity) throw new RuntimeException("Write past the end of the spill file.");
+
+        int written = 0;
+        while (written < data.length) {
+            long at = pos + written;
+            int w = (int)(at / WINDOW_LENGTH);
+            int off = (int)(at % WINDOW_LENGTH);
+
+            ByteBuffer window = window(w).duplicate();
+            window.position(off);
+
+            int n = Math.min(data.length - written, window.remaining());
+            window.put(data, written, n);
+            written += n;
+        }
+    }
+
+    /* Trims the file to the message's real length */
+    synchronized void finish(long length) throws IOException {
+        if (this.length >= 0) throw new RuntimeException("Spill file is already finished.");
+        if (length > capacity) throw new RuntimeException("Message is longer than its spill file.");
+
+        for (int i = 0; i < windows.length; i++) {
+            if (windows[i] != null) windows[i].force();
+            windows[i] = null;
+        }
+
+        channel.truncate(length);
+        this.length = length;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    /* A read only mapping of the whole message */
+    MappedByteBuffer map() throws IOException {
+        if (length < 0) throw new RuntimeException("Spill file isn't finished.");
+        if (length > Integer.MAX_VALUE) throw new RuntimeException("Message too large to map as one buffer, read it through the channel.");
+
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+    }
+
+    private MappedByteBuffer window(int w) throws IOException {
+        if (windows[w] == null) {
+            long from = w * WINDOW_LENGTH;
+            windows[w] = channel.map(FileChannel.MapMode.READ_WRITE, from, Math.min(WINDOW_LENGTH, capacity - from));
+        }
+
+        return windows[w];
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
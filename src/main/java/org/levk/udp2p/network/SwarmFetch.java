@@ -0,0 +1,399 @@
+package org.levk.udp2p.network;
+
+import org.levk.udp2p.network.peers.Peer;
+import org.levk.udp2p.serialization.TRENCSchema;
+import org.levk.udp2p.util.Blake2b256;
+import org.levk.udp2p.util.HashUtil;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/* Fetches one message from several peers that hold it. The
+ * set is cut into ranges of RANGE_LENGTH packets; every idle
+ * source is handed the next range with GETRANGE (18), fastest
+ * sources first. Once no ranges are left, an idle source takes
+ * over the back half of whatever the slowest busy source still
+ * has to send, & a source that stalls has its range put back
+ * & sits out for a while. So faster sources end up sending
+ * more of the message as throughputs change.
+ *
+ * Holders may be anyone, so nothing they send is trusted.
+ * Packets are credited to the holder whose address they came
+ * from, & ones with the wrong messageHash or set size or from
+ * no holder are dropped. Each range of RANGE_LENGTH packets
+ * is checked against its hash from rangeHashes(), which INVs
+ * carry along with the messageHash. A range that
+ * doesn't match is thrown away & fetched again, & whoever
+ * sent it is benched as if it had stalled. The caller still
+ * checks the complete message against its hash. */
+class SwarmFetch {
+    private static final int RANGE_LENGTH = 32;
+    static final int RANGE_HASH_LENGTH = 32;
+
+    /* A source with nothing arriving for this long has stalled */
+    private static final long STALL_TIMEOUT = 1000;
+
+    /* The fetch fails after this long without any progress */
+    private static final long GIVE_UP = 30000;
+
+    private final byte[] messageHash;
+    private final int setSize;
+    private final List<byte[]> rangeHashes;
+    private final List<Source> sources;
+    private final Deque<int[]> unassigned;
+    private final CompletableFuture<PacketSet> result;
+
+    /* Packets received, whether or not their range checked out yet */
+    private final BitSet have;
+
+    /* Packets of ranges still being checked, & who sent them */
+    private final Packet[] pending;
+    private final Source[] senders;
+
+    private PacketSet set;
+    private long lastProgress;
+
+    SwarmFetch(byte[] messageHash, int setSize, List<byte[]> rangeHashes, List<Peer> holders) {
+        if (setSize < 1) throw new RuntimeException("Set size must be positive.");
+        if (rangeHashes.size() != rangeCount(setSize)) throw new RuntimeException("Need one hash per range of the set.");
+        if (holders.isEmpty()) throw new RuntimeException("Need at least one peer to fetch from.");
+
+        this.messageHash = messageHash;
+        this.setSize = setSize;
+        this.rangeHashes = rangeHashes;
+        this.sources = new ArrayList<>();
+        this.unassigned = new ArrayDeque<>();
+        this.have = new BitSet(setSize);
+        this.pending = new Packet[setSize];
+        this.senders = new Source[setSize];
+        this.result = new CompletableFuture<>();
+        this.lastProgress = System.currentTimeMillis();
+
+        for (Peer p : holders) {
+            sources.add(new Source(p));
+        }
+
+        for (int from = 0; from < setSize; from += RANGE_LENGTH) {
+            unassigned.add(new int[]{from, Math.min(from + RANGE_LENGTH, setSize)});
+        }
+    }
+
+    /* What an origin announces next to the messageHash so
+     * fetchers can check each range as it arrives: per range,
+     * the hash of its packets' hashes. Those cover the signed
+     * encodings, which stay the same however often the packets
+     * are forwarded. Needs every packet of the set. */
+    static List<byte[]> rangeHashes(PacketSet set) {
+        List<Packet> packets = set.getPackets();
+        List<byte[]> out = new ArrayList<>();
+
+        for (int from = 0; from < packets.size(); from += RANGE_LENGTH) {
+            Blake2b256 md = HashUtil.digest();
+
+            for (int i = from; i < Math.min(from + RANGE_LENGTH, packets.size()); i++) {
+                if (packets.get(i) == null) throw new RuntimeException("Set is missing packet " + i + ".");
+                md.update(packets.get(i).getHash());
+            }
+
+            out.add(md.doFinal());
+        }
+
+        return out;
+    }
+
+    static int rangeCount(int setSize) {
+        return (setSize + RANGE_LENGTH - 1) / RANGE_LENGTH;
+    }
+
+    byte[] getMessageHash() {
+        return messageHash;
+    }
+
+    CompletableFuture<PacketSet> getResult() {
+        return result;
+    }
+
+    /* Takes a packet that arrived from source. Packets
+     * that don't belong are dropped. Returns the set once
+     * complete. */
+    synchronized PacketSet add(InetAddress source, Packet p) {
+        if (result.isDone() || set != null && set.isComplete()) return null;
+
+        if (!Arrays.equals(p.getMessageHash(), messageHash) || p.getSetSize() != setSize) return null;
+
+        int index = p.getSetIndex();
+        if (index < 0 || index >= setSize || have.get(index)) return null;
+
+        Source sender = sourceAt(source);
+        if (sender == null) return null;
+
+        long now = System.currentTimeMillis();
+        sender.delivered++;
+        sender.lastPacket = now;
+
+        pending[index] = p;
+        senders[index] = sender;
+        have.set(index);
+
+        int from = index - index % RANGE_LENGTH;
+        int to = Math.min(from + RANGE_LENGTH, setSize);
+        if (missing(from, to) > 0) return null;
+
+        if (!checkRange(from, to)) {
+            reject(from, to, now);
+            return null;
+        }
+
+        for (int i = from; i < to; i++) {
+            if (set == null) {
+                set = new PacketSet(pending[i], Long.MAX_VALUE);
+            } else {
+                set.add(pending[i]);
+            }
+
+            pending[i] = null;
+            senders[i] = null;
+        }
+
+        lastProgress = now;
+
+        return set.isComplete() ? set : null;
+    }
+
+    private Source sourceAt(InetAddress address) {
+        for (Source s : sources) {
+            if (address.equals(s.peer.getIpAddress())) return s;
+        }
+
+        return null;
+    }
+
+    private boolean checkRange(int from, int to) {
+        Blake2b256 md = HashUtil.digest();
+
+        for (int i = from; i < to; i++) {
+            md.update(pending[i].getHash());
+        }
+
+        return Arrays.equals(md.doFinal(), rangeHashes.get(from / RANGE_LENGTH));
+    }
+
+    /* Throws a bad range away, benches whoever sent any of it
+     * & puts their work back, so others fetch it again */
+    private void reject(int from, int to, long now) {
+        for (int i = from; i < to; i++) {
+            Source s = senders[i];
+
+            if (s != null && s.benchedUntil <= now) {
+                if (s.busy()) requeue(s.from, s.to);
+                s.from = s.to;
+                s.stalls++;
+                s.benchedUntil = now + (STALL_TIMEOUT << Math.min(s.stalls, 5));
+            }
+
+            pending[i] = null;
+            senders[i] = null;
+        }
+
+        have.clear(from, to);
+        requeue(from, to);
+    }
+
+    /* Requeues stalled ranges & hands out work to idle sources */
+    synchronized List<Request> tick() {
+        List<Request> out = new ArrayList<>();
+        if (result.isDone()) return out;
+
+        long now = System.currentTimeMillis();
+
+        if (now - lastProgress > GIVE_UP) {
+            result.completeExceptionally(new RuntimeException("Fetch made no progress for " + GIVE_UP + " ms."));
+            return out;
+        }
+
+        for (Source s : sources) {
+            if (!s.busy()) continue;
+
+            if (missing(s.from, s.to) == 0) {
+                s.from = s.to;
+            } else if (now - Math.max(s.assigned, s.lastPacket) > STALL_TIMEOUT) {
+                requeue(s.from, s.to);
+                s.from = s.to;
+                s.stalls++;
+                s.benchedUntil = now + (STALL_TIMEOUT << Math.min(s.stalls, 5));
+            }
+        }
+
+        /* Fastest sources pick first */
+        List<Source> idle = new ArrayList<>();
+        for (Source s : sources) {
+            if (!s.busy() && now >= s.benchedUntil) idle.add(s);
+        }
+        idle.sort((a, b) -> Double.compare(b.rate(now), a.rate(now)));
+
+        for (Source s : idle) {
+            int[] range = nextRange();
+
+            if (range == null) {
+                range = steal(s, now);
+                if (range == null) continue;
+            }
+
+            s.from = range[0];
+            s.to = range[1];
+            s.assigned = now;
+            if (s.started == 0) s.started = now;
+
+            out.add(new Request(s.peer, messageHash, range[0], range[1] - range[0]));
+        }
+
+        return out;
+    }
+
+    /* The next queued range with anything still missing, trimmed */
+    private int[] nextRange() {
+        while (!unassigned.isEmpty()) {
+            int[] range = unassigned.poll();
+
+            int from = have.nextClearBit(range[0]);
+            if (from >= range[1]) continue;
+
+            int to = range[1];
+            while (to > from && have.get(to - 1)) to--;
+
+            return new int[]{from, to};
+        }
+
+        return null;
+    }
+
+    /* The back half of the busy source expected to finish last,
+     * if thief is at least as fast as it */
+    private int[] steal(Source thief, long now) {
+        Source victim = null;
+        double latest = 0;
+
+        for (Source s : sources) {
+            if (!s.busy() || s == thief) continue;
+
+            int left = missing(s.from, s.to);
+            if (left < 2) continue;
+
+            double rate = s.rate(now);
+            double finish = (rate > 0) ? left / rate : Double.MAX_VALUE;
+
+            if (victim == null || finish > latest) {
+                victim = s;
+                latest = finish;
+            }
+        }
+
+        if (victim == null || thief.rate(now) < victim.rate(now)) return null;
+
+        /* Split at the middle missing packet */
+        int half = missing(victim.from, victim.to) / 2;
+        int split = victim.to;
+        for (int i = victim.to - 1, count = 0; i >= victim.from; i--) {
+            if (!have.get(i) && ++count == half) {
+                split = i;
+                break;
+            }
+        }
+
+        int[] stolen = new int[]{split, victim.to};
+        victim.to = split;
+        return stolen;
+    }
+
+    private int missing(int from, int to) {
+        if (from >= to) return 0;
+        return (to - from) - have.get(from, to).cardinality();
+    }
+
+    private void requeue(int from, int to) {
+        int start = have.nextClearBit(from);
+
+        while (start < to) {
+            int end = Math.min(have.nextSetBit(start) < 0 ? to : have.nextSetBit(start), to);
+            unassigned.addFirst(new int[]{start, end});
+            start = have.nextClearBit(end);
+        }
+    }
+
+    /* A GETRANGE (18): count packets of a message from index from.
+     * Only the hash & range go on the wire. */
+    static class Request {
+        static final TRENCSchema<Request> SCHEMA = TRENCSchema.builder(Request::new)
+                .fixedBytes("messageHash", 4, r -> r.messageHash, (r, v) -> r.messageHash = v)
+                .int32("from", r -> r.from, (r, v) -> r.from = v)
+                .int32("count", r -> r.count, (r, v) -> r.count = v)
+                .build();
+
+        private Peer peer;
+        private byte[] messageHash;
+        private int from;
+        private int count;
+
+        private Request() {
+        }
+
+        private Request(Peer peer, byte[] messageHash, int from, int count) {
+            this.peer = peer;
+            this.messageHash = messageHash;
+            this.from = from;
+            this.count = count;
+        }
+
+        Peer getPeer() {
+            return peer;
+        }
+
+        byte[] getMessageHash() {
+            return messageHash;
+        }
+
+        int getFrom() {
+            return from;
+        }
+
+        int getCount() {
+            return count;
+        }
+    }
+
+    private static class Source {
+        private final Peer peer;
+
+        /* The range asked for; idle when from == to */
+        private int from;
+        private int to;
+
+        private long started;
+        private long assigned;
+        private long lastPacket;
+        private long delivered;
+
+        private int stalls;
+        private long benchedUntil;
+
+        private Source(Peer peer) {
+            this.peer = peer;
+        }
+
+        private boolean busy() {
+            return from < to;
+        }
+
+        /* Packets per ms since first asked, 0 until then */
+        private double rate(long now) {
+            if (started == 0 || now <= started) return 0;
+            return (double)delivered / (now - started);
+        }
+    }
+}
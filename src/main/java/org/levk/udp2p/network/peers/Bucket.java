@@ -0,0 +1,161 @@
+package org.levk.udp2p.network.peers;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/* One k-bucket: up to k live entries plus a replacement
+ * cache of up to k candidates that turned up while the
+ * bucket was full, newest last.
+ *
+ * Entries are never dropped just because a newer peer
+ * wants in. Instead the least recently seen entry is pinged,
+ * & only if it stays silent past the timeout is it evicted
+ * & the newest candidate promoted in its place. Long lived
+ * peers are the likeliest to stay up, so they're kept.
+ *
+ * Changes are made holding the bucket's own monitor, &
+ * each one publishes a fresh copy of the entries, so
+ * view() can be read without locking. */
+class Bucket {
+    private final int k;
+
+    /* In the order they joined */
+    private final List<Peer> entries;
+    private final LinkedList<Peer> replacements;
+
+    /* Immutable copy of entries, replaced on every change */
+    private volatile Peer[] view = new Peer[0];
+
+    /* The entry pinged to make room, & when */
+    private Peer pinged;
+    private long pingSent;
+
+    Bucket(int k) {
+        this.k = k;
+        this.entries = new ArrayList<>(k);
+        this.replacements = new LinkedList<>();
+    }
+
+    int size() {
+        return view.length;
+    }
+
+    boolean isFull() {
+        return view.length >= k;
+    }
+
+    boolean isEmpty() {
+        return view.length == 0;
+    }
+
+    synchronized boolean contains(NodeId id) {
+        return indexOf(entries, id) >= 0;
+    }
+
+    /* False if the bucket is full */
+    synchronized boolean add(Peer p) {
+        if (contains(p.getNodeId())) return true;
+        if (isFull()) return false;
+
+        removeId(replacements, p.getNodeId());
+        entries.add(p);
+        publish();
+        return true;
+    }
+
+    /* Keeps p as a candidate, dropping the oldest past k */
+    synchronized void addReplacement(Peer p) {
+        if (contains(p.getNodeId())) return;
+
+        removeId(replacements, p.getNodeId());
+        replacements.addLast(p);
+
+        if (replacements.size() > k) replacements.removeFirst();
+    }
+
+    synchronized int replacementCount() {
+        return replacements.size();
+    }
+
+    /* The removed entry, or null */
+    synchronized Peer remove(NodeId id) {
+        int i = indexOf(entries, id);
+        if (i < 0) return null;
+
+        Peer p = entries.remove(i);
+        if (p == pinged) pinged = null;
+
+        publish();
+
+        return p;
+    }
+
+    /* Fills a free slot with the newest candidate, if any */
+    synchronized Peer promote() {
+        if (isFull() || replacements.isEmpty()) return null;
+
+        Peer p = replacements.removeLast();
+        entries.add(p);
+        publish();
+        return p;
+    }
+
+    /* Lowest lastSeen, the earliest joined on ties */
+    synchronized Peer leastRecentlySeen() {
+        Peer out = null;
+
+        for (Peer p : entries) {
+            if (out == null || p.getLastSeen() < out.getLastSeen()) out = p;
+        }
+
+        return out;
+    }
+
+    /* The entry to ping when a candidate is waiting for a full
+     * bucket & no ping is already out, else null */
+    synchronized Peer startPing() {
+        if (!isFull() || replacements.isEmpty() || pinged != null) return null;
+
+        pinged = leastRecentlySeen();
+        pingSent = System.currentTimeMillis();
+        return pinged;
+    }
+
+    /* The pinged entry if it stayed silent past timeout, which
+     * the caller then removes. An answer clears the ping. */
+    synchronized Peer expirePing(long timeout) {
+        if (pinged == null) return null;
+
+        if (pinged.getLastSeen() >= pingSent) {
+            pinged = null;
+            return null;
+        }
+
+        if (System.currentTimeMillis() - pingSent <= timeout) return null;
+
+        return pinged;
+    }
+
+    /* The entries as of the last change. Never modified. */
+    Peer[] view() {
+        return view;
+    }
+
+    private void publish() {
+        view = entries.toArray(new Peer[0]);
+    }
+
+    private static int indexOf(List<Peer> list, NodeId id) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i).getNodeId().equals(id)) return i;
+        }
+
+        return -1;
+    }
+
+    private static void removeId(List<Peer> list, NodeId id) {
+        int i = indexOf(list, id);
+        if (i >= 0) list.remove(i);
+    }
+}
@@ -0,0 +1,142 @@
+package org.levk.udp2p.network.peers;
+
+import org.bouncycastle.util.encoders.Hex;
+
+import java.util.Random;
+
+/* A 160 bit node address held as three big endian words,
+ * so XOR distances are compared & bucketed without
+ * allocating. Immutable. */
+public final class NodeId {
+    public static final int LENGTH = 20;
+    public static final int BITS = 160;
+
+    /* Bytes 0-7, 8-15 & 16-19 of the address */
+    private final long high;
+    private final long mid;
+    private final int low;
+
+    public NodeId(byte[] address) {
+        this(address, 0);
+    }
+
+    public NodeId(byte[] address, int off) {
+        if (address == null || address.length - off < LENGTH) throw new RuntimeException("Node ids are " + LENGTH + " bytes.");
+
+        this.high = readLong(address, off);
+        this.mid = readLong(address, off + 8);
+        this.low = (int)readBits(address, off + 16, 4);
+    }
+
+    private NodeId(long high, long mid, int low) {
+        this.high = high;
+        this.mid = mid;
+        this.low = low;
+    }
+
+    /* Index of the first bit in which the ids differ, 0 being
+     * the most significant, i.e. the number of leading zeros
+     * of the XOR distance. -1 for the same id. */
+    public int bucketIndex(NodeId other) {
+        long h = high ^ other.high;
+        if (h != 0) return Long.numberOfLeadingZeros(h);
+
+        long m = mid ^ other.mid;
+        if (m != 0) return 64 + Long.numberOfLeadingZeros(m);
+
+        int l = low ^ other.low;
+        if (l != 0) return 128 + Integer.numberOfLeadingZeros(l);
+
+        return -1;
+    }
+
+    /* Negative if a is closer to this id than b, 0 if equally close */
+    public int compareDistance(NodeId a, NodeId b) {
+        int c = Long.compareUnsigned(high ^ a.high, high ^ b.high);
+        if (c != 0) return c;
+
+        c = Long.compareUnsigned(mid ^ a.mid, mid ^ b.mid);
+        if (c != 0) return c;
+
+        return Integer.compareUnsigned(low ^ a.low, low ^ b.low);
+    }
+
+    /* A random id that falls in the given bucket relative
+     * to this one: the first bucketIndex bits are ours,
+     * the next one is flipped & the rest are random */
+    public NodeId randomInBucket(int bucketIndex, Random rand) {
+        byte[] out = new byte[LENGTH];
+        rand.nextBytes(out);
+
+        for (int i = 0; i <= bucketIndex; i++) {
+            int mask = 0x80 >>> (i % 8);
+            boolean bit = testBit(i) ^ (i == bucketIndex);
+
+            if (bit) {
+                out[i / 8] |= mask;
+            } else {
+                out[i / 8] &= ~mask;
+            }
+        }
+
+        return new NodeId(out);
+    }
+
+    public NodeId xor(NodeId other) {
+        return new NodeId(high ^ other.high, mid ^ other.mid, low ^ other.low);
+    }
+
+    /* Bit i, 0 being the most significant */
+    public boolean testBit(int i) {
+        if (i < 64) return ((high >>> (63 - i)) & 1) != 0;
+        if (i < 128) return ((mid >>> (127 - i)) & 1) != 0;
+        return ((low >>> (159 - i)) & 1) != 0;
+    }
+
+    public byte[] toBytes() {
+        byte[] out = new byte[LENGTH];
+        writeBits(out, 0, high, 8);
+        writeBits(out, 8, mid, 8);
+        writeBits(out, 16, low, 4);
+        return out;
+    }
+
+    private static long readLong(byte[] in, int off) {
+        return readBits(in, off, 8);
+    }
+
+    private static long readBits(byte[] in, int off, int count) {
+        long out = 0;
+        for (int i = 0; i < count; i++) {
+            out = (out << 8) | (in[off + i] & 0xFF);
+        }
+
+        return out;
+    }
+
+    private static void writeBits(byte[] out, int off, long val, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            out[off + i] = (byte)val;
+            val >>>= 8;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof NodeId)) return false;
+
+        NodeId other = (NodeId)o;
+        return high == other.high && mid == other.mid && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        /* Addresses are hashes, so any word spreads well */
+        return (int)(high ^ (high >>> 32)) ^ low;
+    }
+
+    @Override
+    public String toString() {
+        return Hex.toHexString(toBytes());
+    }
+}
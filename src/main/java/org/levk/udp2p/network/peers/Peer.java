@@ -1,24 +1,64 @@
 package org.levk.udp2p.network.peers;
 
 import org.bouncycastle.util.encoders.Hex;
-import org.levk.udp2p.serialization.ENCItem;
-import org.levk.udp2p.serialization.ENCList;
-import org.levk.udp2p.serialization.TRENC;
+import org.levk.udp2p.serialization.TRENCSchema;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Arrays;
 
 public class Peer {
+    /* Datagram size assumed to reach any peer
+     * until a path MTU probe confirms a larger one */
+    public static final int DEFAULT_DATAGRAM = 1024;
+
+    /* Handshake capability bits */
+    public static final int CAP_COMPRESSION = 0x01;
+    public static final int CAP_COALESCING = 0x02;
+
+    /* Wire encoding: [20 byte address, ip address bytes] */
+    public static final TRENCSchema<Peer> SCHEMA = TRENCSchema.builder(Peer::new)
+            .fixedBytes("address", 20, p -> p.address, (p, v) -> p.address = v)
+            .bytes("ipAddress", p -> p.ipAddress.getAddress(), Peer::setIpBytes)
+            .build();
+
     private byte[] encoded;
     private boolean parsed;
 
     private byte[] address;
+    private NodeId nodeId;
     private InetAddress ipAddress;
 
+    /* Wire format agreed with this peer
+     * during the handshake (Packet.WIRE_*) */
+    private volatile int wireFormat;
+
+    /* CAP_* bits the peer advertised in the handshake.
+     * Older nodes advertise none. */
+    private volatile int capabilities;
+
+    /* Path MTU: the largest datagram confirmed to reach this
+     * peer, the probe in flight (0 for none) & the smallest
+     * probe that was lost, above which we stop probing */
+    private int maxDatagram = DEFAULT_DATAGRAM;
+    private int probeLength;
+    private long probeSent;
+    private int probeCeiling = Integer.MAX_VALUE;
+
     private long messagesSeen;
     private boolean isMalicious;
-    private long lastSeen;
+    private volatile long lastSeen;
+
+    /* Round trip time in ms, smoothed as TCP does (RFC 6298),
+     * from ping (8) to pong (9). -1 until first measured. */
+    private int rtt = -1;
+    private int rttVar;
+    private long pingSent;
+
+    /* For decoding through SCHEMA */
+    private Peer() {
+        this.parsed = true;
+    }
 
     public Peer(byte[] encoded) {
         this.encoded = encoded;
@@ -41,15 +81,7 @@ public class Peer {
         if (parsed) return;
 
         try {
-            ENCList decPeer = TRENC.decode(encoded);
-
-            if (decPeer.size() > 2) throw new RuntimeException("Too many encoded elements.");
-            for (ENCItem e : decPeer) {
-                if (e.isList()) throw new RuntimeException("Packet elements should not be lists.");
-            }
-
-            this.address = decPeer.get(0).getEncData();
-            this.ipAddress = InetAddress.getByAddress(decPeer.get(1).getEncData());
+            SCHEMA.decodeInto(this, encoded);
 
             this.parsed = true;
 
@@ -61,26 +93,151 @@ public class Peer {
     public byte[] getEncoded() {
         if (encoded != null) return encoded;
 
-        encoded = TRENC.encode(this.address, this.ipAddress.getAddress());
+        encoded = SCHEMA.encode(this);
 
         return encoded;
     }
 
+    private void setIpBytes(byte[] ip) {
+        try {
+            this.ipAddress = InetAddress.getByAddress(ip);
+        } catch (UnknownHostException e) {
+            throw new RuntimeException("Invalid ip address length", e);
+        }
+    }
+
     public void witness() {
         this.lastSeen = System.currentTimeMillis();
         this.messagesSeen++;
     }
 
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public synchronized int getRtt() {
+        return rtt;
+    }
+
+    public synchronized int getRttVar() {
+        return rttVar;
+    }
+
+    /* Call as a ping goes out */
+    public synchronized void pinged() {
+        this.pingSent = System.currentTimeMillis();
+    }
+
+    /* Call as a pong arrives; folds the round trip into the estimate */
+    public synchronized void ponged() {
+        if (pingSent == 0) return;
+
+        int sample = (int)Math.min(System.currentTimeMillis() - pingSent, Integer.MAX_VALUE);
+        this.pingSent = 0;
+
+        if (rtt < 0) {
+            this.rtt = sample;
+            this.rttVar = sample / 2;
+        } else {
+            this.rttVar = (3 * rttVar + Math.abs(rtt - sample)) / 4;
+            this.rtt = (7 * rtt + sample) / 8;
+        }
+    }
+
+    /* Puts back state saved in a routing table checkpoint */
+    public synchronized void restore(long lastSeen, int rtt, int rttVar) {
+        this.lastSeen = lastSeen;
+        this.rtt = rtt;
+        this.rttVar = rttVar;
+    }
+
     public byte[] getAddress() {
         parse();
         return address;
     }
 
+    public synchronized NodeId getNodeId() {
+        parse();
+        if (nodeId == null) nodeId = new NodeId(address);
+        return nodeId;
+    }
+
     public InetAddress getIpAddress() {
         parse();
         return ipAddress;
     }
 
+    public int getWireFormat() {
+        return wireFormat;
+    }
+
+    public void setWireFormat(int wireFormat) {
+        this.wireFormat = wireFormat;
+    }
+
+    public int getCapabilities() {
+        return capabilities;
+    }
+
+    public void setCapabilities(int capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    public boolean supports(int capability) {
+        return (capabilities & capability) != 0;
+    }
+
+    public synchronized int getMaxDatagram() {
+        return maxDatagram;
+    }
+
+    public synchronized int getProbeCeiling() {
+        return probeCeiling;
+    }
+
+    /* Records a probe of the given size as sent, unless
+     * another is still in flight */
+    public synchronized boolean startProbe(int length) {
+        if (probeLength != 0) return false;
+
+        this.probeLength = length;
+        this.probeSent = System.currentTimeMillis();
+        return true;
+    }
+
+    /* Forgets what was learned about the path, as after the
+     * peer rejoins, so probing starts over from the default */
+    public synchronized void resetPath() {
+        this.maxDatagram = DEFAULT_DATAGRAM;
+        this.probeLength = 0;
+        this.probeSent = 0;
+        this.probeCeiling = Integer.MAX_VALUE;
+    }
+
+    /* An ack for the probe in flight raises maxDatagram */
+    public synchronized boolean confirmProbe(int length) {
+        if (probeLength == 0 || length != probeLength) return false;
+
+        this.maxDatagram = Math.max(maxDatagram, length);
+        this.probeLength = 0;
+        return true;
+    }
+
+    /* Rules out probes longer than length, as when
+     * the local interface can't send them unfragmented */
+    public synchronized void capProbes(int length) {
+        this.probeCeiling = Math.min(probeCeiling, Math.max(length, 0) + 1);
+    }
+
+    /* Gives up on a probe that went unacked for timeout ms */
+    public synchronized boolean expireProbe(long timeout) {
+        if (probeLength == 0 || System.currentTimeMillis() - probeSent <= timeout) return false;
+
+        this.probeCeiling = Math.min(probeCeiling, probeLength);
+        this.probeLength = 0;
+        return true;
+    }
+
     public boolean isOld() {
         return System.currentTimeMillis() - this.lastSeen > 5000;
     }
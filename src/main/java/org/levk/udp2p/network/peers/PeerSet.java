@@ -1,223 +1,446 @@
 package org.levk.udp2p.network.peers;
 
 import org.levk.udp2p.serialization.TRENC;
+import org.levk.udp2p.serialization.TRENCWriter;
 
-import java.security.SecureRandom;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.stream.IntStream;
 
 import static org.bouncycastle.pqc.math.linearalgebra.ByteUtils.xor;
 
+/* Safe for concurrent use without a set wide lock. Changes
+ * lock only the bucket they touch, & publish an immutable
+ * copy of it. Reads go through those copies & concurrent
+ * indexes, so lookups & broadcasts never wait on a writer. */
 public  class PeerSet {
-    private int peerCount;
+    private AtomicInteger peerCount;
 
     private int k;
-    private Peer[][] buckets;
+    private Bucket[] buckets;
     public byte[] nodeAddress;
+    private NodeId nodeId;
+
+    /* Indexes over the same peers as the buckets, so
+     * resolving the peer behind a packet is one lookup.
+     * Several peers can share an ip (e.g. behind a NAT),
+     * in which case byIp holds the latest one added, &
+     * ipShares counts them so removing that one hands the
+     * ip to a peer still behind it. */
+    private Map<NodeId, Peer> byId;
+    private Map<InetAddress, Peer> byIp;
+    private Map<InetAddress, Integer> ipShares;
+
+    /* When each bucket last had a lookup aimed into it */
+    private AtomicLongArray refreshed;
+
+    /* Candidates that took a freed slot, not yet told */
+    private Queue<Peer> promoted;
+
+    /* Bumped after every change. getAllPeers() reuses its
+     * last list until the version moves on. */
+    private AtomicLong version;
+    private volatile Snapshot all;
 
     public PeerSet(byte[] nodeAddress, int k) {
         this.nodeAddress = nodeAddress;
-        peerCount = 0;
+        this.nodeId = new NodeId(nodeAddress);
+        peerCount = new AtomicInteger();
         this.k = k;
 
-        buckets = new Peer[160][k];
-    }
+        buckets = new Bucket[NodeId.BITS];
+        for (int i = 0; i < NodeId.BITS; i++) {
+            buckets[i] = new Bucket(k);
+        }
 
-    public synchronized boolean hasSpace(Peer p) {
-        int bucketIndex = calcDist(nodeAddress, p.getAddress()).indexOf('1');
+        promoted = new ConcurrentLinkedQueue<>();
+        byId = new ConcurrentHashMap<>();
+        byIp = new ConcurrentHashMap<>();
+        ipShares = new ConcurrentHashMap<>();
+        version = new AtomicLong();
 
-        if (bucketIndex >= 0) {
-            for (int i = 0; i < k; i++) {
-                if (buckets[bucketIndex][i] == null) {
-                    return true;
-                }
-            }
-        } else {
-            throw new RuntimeException("Attempted to check node against it's own peerset.");
+        refreshed = new AtomicLongArray(NodeId.BITS);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < NodeId.BITS; i++) {
+            refreshed.set(i, now);
         }
+    }
 
-        return false;
+    /* Bucket i holds peers whose ids share exactly i
+     * leading bits with ours. -1 for our own id. */
+    public int bucketIndex(NodeId id) {
+        return nodeId.bucketIndex(id);
     }
 
-    public synchronized void add(Peer p) {
-        int bucketIndex = calcDist(nodeAddress, p.getAddress()).indexOf('1');
+    public NodeId getNodeId() {
+        return nodeId;
+    }
 
-        if (contains(bucketIndex, p.getAddress())) return;
+    public boolean hasSpace(Peer p) {
+        int bucketIndex = bucketIndex(p.getNodeId());
 
         if (bucketIndex >= 0) {
-            for (int i = 0; i < k; i++) {
-                if (buckets[bucketIndex][i] == null) {
-                    buckets[bucketIndex][i] = p;
-                    peerCount++;
-                    return;
-                }
-            }
+            return !buckets[bucketIndex].isFull();
         } else {
-            throw new RuntimeException("Attempted to add node to it's own peerset.");
+            throw new RuntimeException("Attempted to check node against it's own peerset.");
         }
     }
 
-    public synchronized void remove(byte[] address) {
-        int bucketIndex = calcDist(nodeAddress, address).indexOf('1');
+    /* False if the bucket is full, in which case p
+     * is kept as a replacement candidate instead */
+    public boolean add(Peer p) {
+        int bucketIndex = bucketIndex(p.getNodeId());
 
-        if (!contains(bucketIndex, address)) return;
+        if (bucketIndex < 0) throw new RuntimeException("Attempted to add node to it's own peerset.");
 
-        if (bucketIndex >= 0) {
-            for (int i = 0; i < k; i++) {
-                if (Arrays.equals(address, buckets[bucketIndex][i].getAddress())) {
-                    buckets[bucketIndex][i] = null;
-                    peerCount--;
-                    return;
-                }
+        Bucket b = buckets[bucketIndex];
+        synchronized (b) {
+            if (b.contains(p.getNodeId())) return true;
+
+            if (b.add(p)) {
+                peerCount.incrementAndGet();
+                index(p);
+                version.incrementAndGet();
+                return true;
             }
-        } else {
-            throw new RuntimeException("Attempted to remove node from it's own peerset.");
+
+            b.addReplacement(p);
+            return false;
         }
+    }
 
+    /* Keeps p as a candidate for its bucket's next free slot */
+    public void addReplacement(Peer p) {
+        int bucketIndex = bucketIndex(p.getNodeId());
+
+        if (bucketIndex < 0) throw new RuntimeException("Attempted to add node to it's own peerset.");
+
+        buckets[bucketIndex].addReplacement(p);
     }
 
-    public synchronized Peer getPeer(byte[] address) throws PeerNotFoundException {
-        int bucketIndex = calcDist(nodeAddress, address).indexOf('1');
+    public void remove(byte[] address) {
+        remove(new NodeId(address));
+    }
 
-        if (!contains(bucketIndex, address)) throw new PeerNotFoundException();
+    public void remove(NodeId id) {
+        int bucketIndex = bucketIndex(id);
 
-        if (bucketIndex >= 0) {
-            for (int i = 0; i < k; i++) {
-                if (Arrays.equals(address, buckets[bucketIndex][i].getAddress())) {
-                    return buckets[bucketIndex][i];
-                }
-            }
-        } else {
-            throw new RuntimeException("Attempted to get node from it's own peerset.");
-        }
+        if (bucketIndex < 0) throw new RuntimeException("Attempted to remove node from it's own peerset.");
 
-        return null;
+        if (byId.containsKey(id)) removeAt(bucketIndex, id);
     }
 
-    public synchronized void trimAllBuckets() {
-        for (int i = 0; i < 160; i++) {
+    public Peer getPeer(byte[] address) throws PeerNotFoundException {
+        return getPeer(new NodeId(address));
+    }
+
+    public Peer getPeer(NodeId id) throws PeerNotFoundException {
+        Peer p = byId.get(id);
+        if (p == null) throw new PeerNotFoundException();
+
+        return p;
+    }
+
+    public Peer getPeer(InetAddress ip) throws PeerNotFoundException {
+        Peer p = byIp.get(ip);
+        if (p == null) throw new PeerNotFoundException();
+
+        return p;
+    }
+
+    public boolean contains(InetAddress ip) {
+        return byIp.containsKey(ip);
+    }
+
+    public void trimAllBuckets() {
+        for (int i = 0; i < NodeId.BITS; i++) {
             trimBucket(i);
         }
     }
 
-    public synchronized void trimBucket(int bucketIndex) {
-        for (int i = 0; i < k; i++) {
-            if (buckets[bucketIndex][i].toDelete()) {
-                buckets[bucketIndex][i] = null;
-                peerCount--;
+    public void trimBucket(int bucketIndex) {
+        for (Peer p : buckets[bucketIndex].view()) {
+            if (p.toDelete()) {
+                removeAt(bucketIndex, p.getNodeId());
             }
         }
     }
 
-    public synchronized List<Peer> getAllPeers() {
+    /* For every full bucket with a candidate waiting, the least
+     * recently seen entry, which should be pinged now. At most
+     * one ping per bucket is out at a time. */
+    public List<Peer> toPing() {
         List<Peer> out = new ArrayList<>();
 
-        for (int i = 0; i < 160; i++) {
-            for (int j = 0; j < k; j++) {
-                if (buckets[i][j] != null) {
-                    out.add(buckets[i][j]);
-                }
-            }
+        for (int i = 0; i < NodeId.BITS; i++) {
+            Peer p = buckets[i].startPing();
+            if (p != null) out.add(p);
         }
 
         return out;
     }
 
-    public synchronized List<Peer> toRefresh() {
+    /* Evicts pinged entries that stayed silent past timeout,
+     * each replaced by its bucket's newest candidate */
+    public void expirePings(long timeout) {
+        for (int i = 0; i < NodeId.BITS; i++) {
+            Peer p = buckets[i].expirePing(timeout);
+            if (p != null) removeAt(i, p.getNodeId());
+        }
+    }
+
+    /* Candidates promoted since the last call. They were only
+     * ever cached, so they still need to be joined. */
+    public List<Peer> takePromoted() {
         List<Peer> out = new ArrayList<>();
 
-        for (int i = 0; i < 160; i++) {
-            out.addAll(toRefreshBucket(i));
+        Peer p;
+        while ((p = promoted.poll()) != null) {
+            out.add(p);
         }
 
         return out;
     }
 
-    public synchronized List<Peer> toRefreshBucket(int bucketIndex) {
-        List<Peer> out = new ArrayList<>();
+    /* Every peer, as an unmodifiable list shared between
+     * callers until the set next changes */
+    public List<Peer> getAllPeers() {
+        Snapshot s = all;
+        long v = version.get();
+        if (s != null && s.version == v) return s.peers;
 
-        for (int i = 0; i < k; i++) {
-            if (buckets[bucketIndex][i].isOld()) {
-                out.add(buckets[bucketIndex][i]);
+        List<Peer> out = new ArrayList<>(peerCount.get());
+        for (int i = 0; i < NodeId.BITS; i++) {
+            Collections.addAll(out, buckets[i].view());
+        }
+
+        /* Read after v, so never older than v. A change racing
+         * with this only means a rebuild on the next call. */
+        s = new Snapshot(v, Collections.unmodifiableList(out));
+        all = s;
+        return s.peers;
+    }
+
+    public List<Peer> findClosest(byte[] target, int n) {
+        return findClosest(new NodeId(target), n);
+    }
+
+    /* The n peers XOR closest to target, closest first.
+     *
+     * With b the target's bucket, peers in b share the target's
+     * first b + 1 bits, peers in buckets above b its first b bits,
+     * & peers in a bucket i below b only its first i bits. So b,
+     * then everything above b, then b - 1 down to 0 visits groups
+     * that are each strictly farther than the last, & the walk
+     * stops once n peers are held after finishing a group. A max
+     * heap of size n keeps the n best seen so far. */
+    public List<Peer> findClosest(NodeId target, int n) {
+        if (n <= 0) return new ArrayList<>();
+
+        Comparator<Peer> closer = (x, y) -> target.compareDistance(x.getNodeId(), y.getNodeId());
+        PriorityQueue<Peer> heap = new PriorityQueue<>(n, closer.reversed());
+
+        /* Our own id is closest to itself, so only "below" groups */
+        int b = bucketIndex(target);
+        if (b < 0) b = NodeId.BITS;
+
+        for (int i = b; i < NodeId.BITS; i++) {
+            offerBucket(heap, i, n, closer);
+        }
+
+        for (int i = b - 1; i >= 0 && heap.size() < n; i--) {
+            offerBucket(heap, i, n, closer);
+        }
+
+        List<Peer> out = new ArrayList<>(heap);
+        out.sort(closer);
+        return out;
+    }
+
+    private void offerBucket(PriorityQueue<Peer> heap, int bucketIndex, int n, Comparator<Peer> closer) {
+        for (Peer p : buckets[bucketIndex].view()) {
+            if (heap.size() < n) {
+                heap.add(p);
+            } else if (closer.compare(p, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(p);
             }
         }
+    }
+
+    /* Marks the bucket a lookup for target covers as fresh */
+    public void touch(NodeId target) {
+        int bucketIndex = bucketIndex(target);
+        if (bucketIndex >= 0) refreshed.set(bucketIndex, System.currentTimeMillis());
+    }
+
+    /* Buckets without a lookup in the last age ms. Buckets
+     * deeper than one past the deepest non empty bucket are
+     * left out, as there's nothing there to find. */
+    public List<Integer> quietBuckets(long age) {
+        List<Integer> out = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        int deepest = -1;
+        for (int i = 0; i < NodeId.BITS; i++) {
+            if (bucketContainsPeers(i)) deepest = i;
+        }
+
+        for (int i = 0; i <= Math.min(deepest + 1, NodeId.BITS - 1); i++) {
+            if (now - refreshed.get(i) > age) out.add(i);
+        }
 
         return out;
     }
 
-    public synchronized void witness(byte[] address) {
-        int bucketIndex = calcDist(nodeAddress, address).indexOf('1');
+    /* Up to n distinct peers picked at random from one bucket */
+    public List<Peer> sampleBucket(int bucketIndex, int n, Random rand) {
+        List<Peer> in = new ArrayList<>(Arrays.asList(buckets[bucketIndex].view()));
 
-        if (bucketIndex >= 0) {
-            for (int i = 0; i < k; i++) {
-                if (Arrays.equals(address, buckets[bucketIndex][i].getAddress())) {
-                    buckets[bucketIndex][i].witness();
-                }
-            }
-        } else {
-            throw new RuntimeException("Attempted to witness node in it's own peerset.");
+        /* Partial Fisher-Yates, only the first n places */
+        int count = Math.min(n, in.size());
+        for (int i = 0; i < count; i++) {
+            Collections.swap(in, i, i + rand.nextInt(in.size() - i));
         }
+
+        return new ArrayList<>(in.subList(0, count));
     }
 
-    public synchronized boolean contains(int bucketIndex, byte[] address) {
-        if (bucketIndex >= 0) {
-            for (int i = 0; i < k; i++) {
-                if (Arrays.equals(address, buckets[bucketIndex][i].getAddress())) {
-                    return true;
-                }
-            }
+    public List<Peer> toRefresh() {
+        List<Peer> out = new ArrayList<>();
+
+        for (int i = 0; i < NodeId.BITS; i++) {
+            out.addAll(toRefreshBucket(i));
         }
 
-        return false;
+        return out;
     }
 
-    /* Repeated because the less often calcdist needs to be run the better */
-    public synchronized boolean contains(byte[] address) {
-        int bucketIndex = calcDist(nodeAddress, address).indexOf('1');
+    public List<Peer> toRefreshBucket(int bucketIndex) {
+        List<Peer> out = new ArrayList<>();
 
-        if (bucketIndex >= 0) {
-            for (int i = 0; i < k; i++) {
-                if (Arrays.equals(address, buckets[bucketIndex][i].getAddress())) {
-                    return true;
-                }
+        for (Peer p : buckets[bucketIndex].view()) {
+            if (p.isOld()) {
+                out.add(p);
             }
         }
 
-        return false;
+        return out;
+    }
+
+    public void witness(byte[] address) {
+        witness(new NodeId(address));
     }
 
-    public synchronized Peer getRandom() {
-        SecureRandom rand = new SecureRandom();
+    public void witness(NodeId id) {
+        Peer p = byId.get(id);
+        if (p != null) p.witness();
+    }
 
-        Peer temp = null;
+    public boolean contains(int bucketIndex, byte[] address) {
+        return contains(bucketIndex, new NodeId(address));
+    }
 
-        if (peerCount == 0) return null;
+    public boolean contains(int bucketIndex, NodeId id) {
+        return bucketIndex >= 0 && bucketIndex == bucketIndex(id) && byId.containsKey(id);
+    }
 
-        int i = rand.nextInt(160);
+    public boolean contains(byte[] address) {
+        return contains(new NodeId(address));
+    }
 
-        while (temp == null) {
-            if (bucketContainsPeers(i)) {
-                for (int j = 0; j < k; j++) {
-                    if (buckets[i][j] != null) {
-                        temp = buckets[i][j];
-                    }
-                }
+    public boolean contains(NodeId id) {
+        return byId.containsKey(id);
+    }
+
+    private void index(Peer p) {
+        byId.put(p.getNodeId(), p);
+        byIp.put(p.getIpAddress(), p);
+        ipShares.merge(p.getIpAddress(), 1, Integer::sum);
+    }
+
+    private void unindex(Peer p) {
+        InetAddress ip = p.getIpAddress();
+        byId.remove(p.getNodeId());
+
+        if (ipShares.compute(ip, (k, n) -> (n == null || n <= 1) ? null : n - 1) == null) {
+            byIp.remove(ip, p);
+        } else if (byIp.get(ip) == p) {
+            for (Peer other : byId.values()) {
+                if (other.getIpAddress().equals(ip) && byIp.replace(ip, p, other)) break;
             }
+        }
+    }
 
-            i++;
+    /* Removes an entry & promotes a candidate into its slot */
+    private void removeAt(int bucketIndex, NodeId id) {
+        Bucket b = buckets[bucketIndex];
+
+        synchronized (b) {
+            Peer p = b.remove(id);
+            if (p == null) return;
+
+            peerCount.decrementAndGet();
+
+            unindex(p);
+
+            Peer replacement = b.promote();
+            if (replacement != null) {
+                peerCount.incrementAndGet();
+                index(replacement);
+                promoted.add(replacement);
+            }
+
+            version.incrementAndGet();
         }
+    }
 
-        return temp;
+    /* A peer picked uniformly at random, or null if there are none */
+    public Peer getRandom() {
+        List<Peer> all = getAllPeers();
+        if (all.isEmpty()) return null;
+
+        return all.get(ThreadLocalRandom.current().nextInt(all.size()));
     }
 
-    public synchronized boolean bucketContainsPeers(int bucketIndex) {
-        for (int i = 0; i < k; i++) {
-            if (buckets[bucketIndex][i] != null) return true;
+    /* Up to n distinct peers, each subset of that size equally
+     * likely. Indexes into the getAllPeers() snapshot with
+     * Floyd's algorithm, so O(n) whatever the table size. */
+    public List<Peer> sample(int n) {
+        List<Peer> all = getAllPeers();
+        int size = all.size();
+
+        if (n <= 0) return new ArrayList<>();
+        if (n >= size) return new ArrayList<>(all);
+
+        ThreadLocalRandom rand = ThreadLocalRandom.current();
+        Set<Integer> picked = new HashSet<>(n * 2);
+        List<Peer> out = new ArrayList<>(n);
+
+        for (int j = size - n; j < size; j++) {
+            int t = rand.nextInt(j + 1);
+            int i = picked.add(t) ? t : j;
+
+            if (i == j) picked.add(j);
+            out.add(all.get(i));
         }
 
-        return false;
+        return out;
     }
 
+    public boolean bucketContainsPeers(int bucketIndex) {
+        return !buckets[bucketIndex].isEmpty();
+    }
+
+    /* Distance as a bit string. Only for display;
+     * bucketing goes through NodeId. */
     public static String calcDist(byte[] from, byte[] to) {
         return fromBitSet(fromByteArray(xor(from, to)));
     }
@@ -243,54 +466,67 @@ public  class PeerSet {
         return temp;
     }
 
-    public synchronized byte[] getEncoded() {
-        byte[][] toEncode = new byte[peerCount][];
+    /* Encodes one snapshot, so length & contents agree
+     * even while peers come & go */
+    public byte[] getEncoded() {
+        List<Peer> peers = getAllPeers();
 
-        int encoded = 0;
-        for (int i = 0; i < 160; i++) {
-            for (int j = 0; j < k; j++) {
-                if (buckets[i][j] != null) {
-                    toEncode[encoded] = buckets[i][j].getEncoded();
-                    encoded++;
-                }
-            }
-        }
+        TRENCWriter out = new TRENCWriter(encodedLength(peers));
+        writeEncoded(peers, out.getBuffer());
+        return out.toByteArray();
+    }
 
-        return TRENC.encode(toEncode);
+    /* Exact size of getEncoded() while the set is unchanged */
+    public int encodedLength() {
+        return encodedLength(getAllPeers());
     }
 
-    public synchronized byte[] getSubset(int num) {
-        Set<byte[]> set = new HashSet<>();
+    /* Writes the same bytes as getEncoded() into a caller supplied buffer */
+    public void writeEncoded(ByteBuffer buffer) {
+        writeEncoded(getAllPeers(), buffer);
+    }
 
-        for (int i = 0; i < num; i++) {
-            /* TODO: getRandom is gonna be hella slow & has a terrible O() complexity. Fix. */
-            Peer temp = getRandom();
+    private static int encodedLength(List<Peer> peers) {
+        int length = TRENCWriter.listHeaderLength(peers.size());
 
-            if (temp != null) {
-                set.add(temp.getEncoded());
-            }
+        for (Peer p : peers) {
+            length += TRENCWriter.elementLength(p.getEncoded());
         }
 
-        byte[][] toEncode = new byte[set.size()][];
+        return length;
+    }
+
+    private static void writeEncoded(List<Peer> peers, ByteBuffer buffer) {
+        TRENCWriter out = new TRENCWriter(buffer);
+        out.beginList(peers.size());
 
-        int encoded = 0;
-        for (byte[] peer : set) {
-            toEncode[encoded] = peer;
-            encoded++;
+        for (Peer p : peers) {
+            out.append(p.getEncoded());
         }
+    }
 
-        return TRENC.encode(toEncode);
+    /* Up to num random peers, encoded for a peer list (5) */
+    public byte[] getSubset(int num) {
+        return Peer.SCHEMA.encodeList(sample(num));
     }
 
     public String toString() {
         String out = "";
 
-        for (int i = 0; i < 160; i++) {
-            for (int j = 0; j < k; j++) {
-                out += buckets[i][j].toString();
-            }
+        for (Peer p : getAllPeers()) {
+            out += p.toString();
         }
 
         return out;
     }
+
+    private static class Snapshot {
+        private final long version;
+        private final List<Peer> peers;
+
+        private Snapshot(long version, List<Peer> peers) {
+            this.version = version;
+            this.peers = peers;
+        }
+    }
 }
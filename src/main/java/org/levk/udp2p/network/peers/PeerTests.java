@@ -0,0 +1,250 @@
+package org.levk.udp2p.network.peers;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/* Checks of node ids & the routing table. Prints each
+ * check & throws on the first that fails. */
+public class PeerTests {
+    public static void main(String[] args) throws Exception {
+        Random rand = new Random(1);
+
+        nodeIds(rand);
+        removal(rand);
+        findClosest(rand);
+        sample(rand);
+        checkpoint(rand);
+    }
+
+    /* Bucket indexes & distance order agree with XOR as an integer */
+    private static void nodeIds(Random rand) {
+        boolean bytes = true;
+        boolean buckets = true;
+        boolean distances = true;
+        boolean inBucket = true;
+
+        for (int i = 0; i < 10000; i++) {
+            byte[] x = randomAddress(rand);
+            byte[] y = randomAddress(rand);
+            byte[] z = randomAddress(rand);
+
+            /* Mostly share a prefix, so deep buckets get tried too */
+            System.arraycopy(x, 0, y, 0, rand.nextInt(NodeId.LENGTH));
+
+            NodeId a = new NodeId(x);
+            NodeId b = new NodeId(y);
+            NodeId c = new NodeId(z);
+
+            bytes &= Arrays.equals(a.toBytes(), x) && a.equals(new NodeId(a.toBytes()));
+
+            BigInteger ab = distance(x, y);
+            buckets &= a.bucketIndex(b) == (ab.signum() == 0 ? -1 : NodeId.BITS - ab.bitLength());
+
+            distances &= Integer.signum(a.compareDistance(b, c)) == ab.compareTo(distance(x, z));
+
+            int bucket = rand.nextInt(NodeId.BITS);
+            inBucket &= a.bucketIndex(a.randomInBucket(bucket, rand)) == bucket;
+        }
+
+        check(bytes, "node ids round trip through their bytes");
+        check(buckets, "bucket index is the leading zeros of the distance");
+        check(distances, "compareDistance orders by XOR distance");
+        check(inBucket, "randomInBucket lands in the bucket asked for");
+    }
+
+    /* Removing a peer keeps the ip index on any peer still
+     * behind that ip, & a promoted candidate is indexed */
+    private static void removal(Random rand) throws Exception {
+        PeerSet peers = new PeerSet(randomAddress(rand), 2);
+        byte[] shared = {10, 0, 0, 1};
+        InetAddress ip = InetAddress.getByAddress(shared);
+
+        Peer first = new Peer(peers.getNodeId().randomInBucket(0, rand).toBytes(), shared);
+        Peer second = new Peer(peers.getNodeId().randomInBucket(1, rand).toBytes(), shared);
+        Peer third = new Peer(peers.getNodeId().randomInBucket(2, rand).toBytes(), shared);
+        peers.add(first);
+        peers.add(second);
+        peers.add(third);
+
+        peers.remove(third.getNodeId());
+        check(peers.contains(ip) && peers.getPeer(ip) != third, "removing the latest peer behind an ip hands the ip to another");
+
+        peers.remove(first.getNodeId());
+        check(peers.getPeer(ip) == second, "removing an earlier peer behind an ip leaves the latest");
+
+        peers.remove(second.getNodeId());
+        check(!peers.contains(ip), "removing the last peer behind an ip drops it");
+
+        Peer a = new Peer(peers.getNodeId().randomInBucket(3, rand).toBytes(), new byte[]{10, 0, 0, 2});
+        Peer b = new Peer(peers.getNodeId().randomInBucket(3, rand).toBytes(), new byte[]{10, 0, 0, 3});
+        Peer candidate = new Peer(peers.getNodeId().randomInBucket(3, rand).toBytes(), new byte[]{10, 0, 0, 4});
+        peers.add(a);
+        peers.add(b);
+        check(!peers.add(candidate), "a full bucket keeps a candidate");
+
+        peers.remove(a.getNodeId());
+        check(!peers.contains(a.getIpAddress()) && peers.getPeer(candidate.getIpAddress()) == candidate && peers.contains(candidate.getNodeId()), "a removed peer's slot & ip go to the candidate");
+    }
+
+    /* findClosest matches sorting every peer by distance */
+    private static void findClosest(Random rand) throws IOException {
+        PeerSet peers = randomPeers(rand, 20, 5000);
+        List<Peer> all = peers.getAllPeers();
+
+        boolean same = true;
+        for (int i = 0; i < 200; i++) {
+            NodeId target = (i % 2 == 0) ? new NodeId(randomAddress(rand)) : peers.getNodeId().randomInBucket(rand.nextInt(24), rand);
+            int n = 1 + rand.nextInt(32);
+
+            List<Peer> sorted = new ArrayList<>(all);
+            sorted.sort((x, y) -> target.compareDistance(x.getNodeId(), y.getNodeId()));
+
+            same &= ids(peers.findClosest(target, n)).equals(ids(sorted.subList(0, Math.min(n, sorted.size()))));
+        }
+
+        check(same, "findClosest over " + all.size() + " peers matches a brute force sort");
+    }
+
+    /* Samples are distinct peers of the table, each equally likely */
+    private static void sample(Random rand) throws IOException {
+        PeerSet peers = randomPeers(rand, 20, 2000);
+        List<Peer> all = peers.getAllPeers();
+        Set<NodeId> table = new HashSet<>(ids(all));
+
+        int n = 10;
+        int rounds = 20000;
+        Map<NodeId, Integer> counts = new HashMap<>();
+        boolean distinct = true;
+
+        for (int i = 0; i < rounds; i++) {
+            List<Peer> s = peers.sample(n);
+            Set<NodeId> ids = new HashSet<>(ids(s));
+
+            distinct &= s.size() == n && ids.size() == n && table.containsAll(ids);
+
+            for (NodeId id : ids) {
+                counts.merge(id, 1, Integer::sum);
+            }
+        }
+
+        /* Each peer is expected rounds * n / size times; allow 6 sigma */
+        double expected = (double)rounds * n / all.size();
+        double slack = 6 * Math.sqrt(expected);
+        boolean uniform = counts.size() == all.size();
+        for (int c : counts.values()) {
+            uniform &= Math.abs(c - expected) <= slack;
+        }
+
+        check(distinct, "samples of " + n + " are distinct peers of the table");
+        check(uniform, "every one of " + all.size() + " peers is sampled about " + (int)expected + " times");
+        check(ids(peers.sample(all.size() + 5)).equals(ids(all)), "sampling more than the table returns all of it");
+    }
+
+    /* Peers & their stats survive a save & load; damage is caught */
+    private static void checkpoint(Random rand) throws IOException {
+        List<Peer> saved = randomPeers(rand, 20, 500).getAllPeers();
+        for (Peer p : saved) {
+            p.restore(rand.nextInt(Integer.MAX_VALUE), rand.nextInt(5000), rand.nextInt(1000));
+        }
+
+        Path dir = Files.createTempDirectory("udp2p");
+        Path file = dir.resolve("peers");
+
+        try {
+            check(RoutingTableFile.load(file).isEmpty(), "no checkpoint loads as an empty table");
+
+            RoutingTableFile.save(file, saved);
+            List<Peer> loaded = RoutingTableFile.load(file);
+
+            boolean same = loaded.size() == saved.size();
+            for (int i = 0; same && i < saved.size(); i++) {
+                Peer a = saved.get(i);
+                Peer b = loaded.get(i);
+
+                same = Arrays.equals(a.getEncoded(), b.getEncoded())
+                        && a.getNodeId().equals(b.getNodeId())
+                        && a.getIpAddress().equals(b.getIpAddress())
+                        && a.getLastSeen() == b.getLastSeen()
+                        && a.getRtt() == b.getRtt()
+                        && a.getRttVar() == b.getRttVar();
+            }
+
+            check(same, saved.size() + " peers round trip through a checkpoint");
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(channel.size() - 3);
+            }
+
+            boolean rejected = false;
+            try {
+                RoutingTableFile.load(file);
+            } catch (RuntimeException e) {
+                rejected = true;
+            }
+
+            check(rejected, "a truncated checkpoint is rejected");
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    /* A table of k per bucket, offered count random peers */
+    private static PeerSet randomPeers(Random rand, int k, int count) throws IOException {
+        PeerSet peers = new PeerSet(randomAddress(rand), k);
+
+        for (int i = 0; i < count; i++) {
+            byte[] address = randomAddress(rand);
+
+            /* Every other one near us, so more than a few buckets fill */
+            if (i % 2 == 0) address = peers.getNodeId().randomInBucket(rand.nextInt(24), rand).toBytes();
+
+            Peer p = new Peer(address, new byte[]{10, (byte)(i >> 16), (byte)(i >> 8), (byte)i});
+            if (peers.hasSpace(p)) peers.add(p);
+        }
+
+        return peers;
+    }
+
+    private static byte[] randomAddress(Random rand) {
+        byte[] out = new byte[NodeId.LENGTH];
+        rand.nextBytes(out);
+        return out;
+    }
+
+    private static BigInteger distance(byte[] a, byte[] b) {
+        byte[] out = new byte[a.length];
+        for (int i = 0; i < a.length; i++) {
+            out[i] = (byte)(a[i] ^ b[i]);
+        }
+
+        return new BigInteger(1, out);
+    }
+
+    private static List<NodeId> ids(List<Peer> peers) {
+        List<NodeId> out = new ArrayList<>();
+        for (Peer p : peers) {
+            out.add(p.getNodeId());
+        }
+
+        return out;
+    }
+
+    private static void check(boolean ok, String what) {
+        System.out.println((ok ? "ok     " : "FAILED ") + what);
+        if (!ok) throw new RuntimeException("Check failed: " + what);
+    }
+}
@@ -0,0 +1,102 @@
+package org.levk.udp2p.network.peers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/* A routing table checkpoint, so a restarted node starts
+ * from its old peers rather than an empty table.
+ *
+ * Layout, big endian:
+ *   [magic 4][version 4][count 4]
+ *   count x [length 2][Peer.getEncoded()][lastSeen 8][rtt 4][rttVar 4]
+ *
+ * Written through a mapped buffer into a temp file that is then
+ * moved over the old one, so a crash mid checkpoint leaves the
+ * previous copy intact. */
+public final class RoutingTableFile {
+    private static final int MAGIC = 0x55445052;
+    private static final int VERSION = 1;
+
+    private static final int HEADER_LENGTH = 12;
+    private static final int STATS_LENGTH = 16;
+
+    private RoutingTableFile() {
+    }
+
+    public static void save(Path file, List<Peer> peers) throws IOException {
+        int length = HEADER_LENGTH;
+        for (Peer p : peers) {
+            length += 2 + p.getEncoded().length + STATS_LENGTH;
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(peers.size());
+
+            for (Peer p : peers) {
+                byte[] encoded = p.getEncoded();
+                if (encoded.length > 0xFFFF) throw new RuntimeException("Peer encoding too long to checkpoint.");
+
+                out.putShort((short)encoded.length);
+                out.put(encoded);
+                out.putLong(p.getLastSeen());
+                out.putInt(p.getRtt());
+                out.putInt(p.getRttVar());
+            }
+
+            out.force();
+        }
+
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* The saved peers with their stats, or none if there's no
+     * checkpoint yet. Throws if the file is damaged. */
+    public static List<Peer> load(Path file) throws IOException {
+        List<Peer> out = new ArrayList<>();
+        if (!Files.exists(file)) return out;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_LENGTH || channel.size() > Integer.MAX_VALUE) throw new RuntimeException("Routing table file has a bad length.");
+
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (in.getInt() != MAGIC) throw new RuntimeException("Not a routing table file.");
+            if (in.getInt() != VERSION) throw new RuntimeException("Unknown routing table file version.");
+
+            int count = in.getInt();
+            if (count < 0) throw new RuntimeException("Routing table file has a bad count.");
+
+            for (int i = 0; i < count; i++) {
+                if (in.remaining() < 2) throw new RuntimeException("Routing table file is truncated.");
+
+                int length = in.getShort() & 0xFFFF;
+                if (in.remaining() < length + STATS_LENGTH) throw new RuntimeException("Routing table file is truncated.");
+
+                byte[] encoded = new byte[length];
+                in.get(encoded);
+
+                Peer p = new Peer(encoded);
+                p.parse();
+                p.restore(in.getLong(), in.getInt(), in.getInt());
+
+                out.add(p);
+            }
+        }
+
+        return out;
+    }
+}
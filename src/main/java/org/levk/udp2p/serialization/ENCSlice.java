@@ -0,0 +1,113 @@
+package org.levk.udp2p.serialization;
+
+import java.nio.ByteBuffer;
+
+/* A view of one encoded element within a larger buffer.
+ * Nothing is copied until getBytes() is called. */
+public class ENCSlice {
+    private final ByteBuffer buffer;
+
+    /* Where the element's length header starts */
+    private final int start;
+
+    /* Where the element's data starts */
+    private final int offset;
+
+    private final int length;
+
+    ENCSlice(ByteBuffer buffer, int start, int offset, int length) {
+        this.buffer = buffer;
+        this.start = start;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /* Offset just past the end of this element */
+    public int getEnd() {
+        return offset + length;
+    }
+
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    public byte get(int i) {
+        if (i < 0 || i >= length) throw new IndexOutOfBoundsException("Index " + i + " outside element of length " + length);
+        return buffer.get(offset + i);
+    }
+
+    /* Reads the element as an unsigned big endian int.
+     * Same result as ByteUtils.byteArrayToInt(getBytes()) */
+    public int getInt() {
+        if (length > 4) throw new RuntimeException("Element too long to be an int.");
+
+        int out = 0;
+        for (int i = 0; i < length; i++) {
+            out = (out << 8) | (buffer.get(offset + i) & 0xFF);
+        }
+
+        return out;
+    }
+
+    public byte[] getBytes() {
+        byte[] out = new byte[length];
+        copyTo(out, 0);
+        return out;
+    }
+
+    public void copyTo(byte[] dest, int destOffset) {
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + offset, dest, destOffset, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                dest[destOffset + i] = buffer.get(offset + i);
+            }
+        }
+    }
+
+    /* A read only ByteBuffer over just this element's data */
+    public ByteBuffer asByteBuffer() {
+        ByteBuffer out = buffer.asReadOnlyBuffer();
+        out.limit(offset + length);
+        out.position(offset);
+        return out.slice();
+    }
+
+    public boolean contentEquals(byte[] other) {
+        if (other == null || other.length != length) return false;
+
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + i) != other[i]) return false;
+        }
+
+        return true;
+    }
+
+    /* Whether the element's data is itself a well formed list */
+    public boolean isList() {
+        if (length < 2 || buffer.get(offset) != 0x00) return false;
+
+        return TRENC.listEnd(buffer, offset, offset + length) == offset + length;
+    }
+
+    /* Decodes the list held in this element's data */
+    public ENCSlice[] getList() {
+        return TRENC.decodeSlices(buffer, offset, offset + length);
+    }
+}
@@ -0,0 +1,158 @@
+package org.levk.udp2p.serialization;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/* Checks of the TRENC decoders & schemas. Prints each
+ * check & throws on the first that fails. */
+public class SerializationTests {
+    public static void main(String[] args) {
+        Random rand = new Random(1);
+
+        slices(rand);
+        malformedSlices();
+        schemas(rand);
+    }
+
+    /* decodeSlices gives back what was encoded, for empty, short
+     * & long elements & lists, & from a buffer at any position */
+    private static void slices(Random rand) {
+        boolean same = true;
+        boolean offset = true;
+
+        for (int i = 0; i < 500; i++) {
+            byte[][] elements = new byte[(i % 5 == 0) ? 128 + rand.nextInt(200) : rand.nextInt(20)][];
+            for (int j = 0; j < elements.length; j++) {
+                elements[j] = new byte[(rand.nextInt(4) == 0) ? 128 + rand.nextInt(2000) : rand.nextInt(128)];
+                rand.nextBytes(elements[j]);
+            }
+
+            byte[] encoded = TRENC.encode(elements);
+            ENCSlice[] slices = TRENC.decodeSlices(encoded);
+
+            same &= slices.length == elements.length;
+            for (int j = 0; same && j < elements.length; j++) {
+                same = slices[j].contentEquals(elements[j]);
+            }
+
+            byte[] padded = new byte[encoded.length + 7];
+            System.arraycopy(encoded, 0, padded, 3, encoded.length);
+            ByteBuffer buffer = ByteBuffer.wrap(padded);
+            buffer.position(3);
+            buffer.limit(3 + encoded.length);
+
+            ENCSlice[] shifted = TRENC.decodeSlices(buffer);
+            offset &= shifted.length == elements.length;
+            for (int j = 0; offset && j < elements.length; j++) {
+                offset = Arrays.equals(shifted[j].getBytes(), elements[j]);
+            }
+        }
+
+        check(same, "decodeSlices gives back the encoded elements");
+        check(offset, "decodeSlices reads a list in the middle of a buffer");
+    }
+
+    /* Bad lengths from the wire fail as malformed, not with
+     * whatever an array allocation or index would throw */
+    private static void malformedSlices() {
+        check(rejects(new byte[]{0x00, 0x04, (byte)0x80, 0x00, 0x00, 0x00}), "a count that reads negative is rejected");
+        check(rejects(new byte[]{0x00, 0x04, 0x7F, (byte)0xFF, (byte)0xFF, (byte)0x90}), "a count past Integer.MAX_VALUE is rejected");
+        check(rejects(new byte[]{0x00, 0x01, 0x10, (byte)0x81}), "a count larger than the bytes left is rejected");
+        check(rejects(new byte[]{0x00, (byte)0x81, (byte)0x85, 0x01}), "a truncated element is rejected");
+        check(rejects(new byte[]{0x00, (byte)0x81, 0x04, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF}), "an element length that wraps negative is rejected");
+        check(rejects(new byte[]{(byte)0x81, 0x01}), "a lone element is not a list");
+    }
+
+    /* Records survive a schema round trip, alone & in lists,
+     * encodedLength is exact & bad fields are refused */
+    private static void schemas(Random rand) {
+        int[] ints = {0, 1, -1, 127, 128, 255, 256, 65535, Integer.MAX_VALUE, Integer.MIN_VALUE};
+
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Record r = new Record();
+            r.id = new byte[20];
+            rand.nextBytes(r.id);
+            r.body = new byte[(i % 10 == 0) ? 300 + rand.nextInt(3000) : rand.nextInt(128)];
+            rand.nextBytes(r.body);
+            r.count = (i < ints.length) ? ints[i] : rand.nextInt();
+            records.add(r);
+        }
+
+        boolean same = true;
+        boolean sized = true;
+        for (Record r : records) {
+            byte[] encoded = Record.SCHEMA.encode(r);
+            sized &= encoded.length == Record.SCHEMA.encodedLength(r);
+            same &= r.equalTo(Record.SCHEMA.decode(encoded)) && r.equalTo(Record.SCHEMA.decode(ByteBuffer.wrap(encoded)));
+        }
+
+        byte[] list = Record.SCHEMA.encodeList(records);
+        List<Record> decoded = Record.SCHEMA.decodeList(list);
+        boolean listSame = list.length == Record.SCHEMA.encodedListLength(records) && decoded.size() == records.size();
+        for (int i = 0; listSame && i < records.size(); i++) {
+            listSame = records.get(i).equalTo(decoded.get(i));
+        }
+
+        check(same, "records round trip through their schema");
+        check(sized, "encodedLength matches the encoding");
+        check(listSame, "record lists round trip & are sized exactly");
+        check(Record.SCHEMA.decodeList(Record.SCHEMA.encodeList(new ArrayList<>())).isEmpty(), "an empty record list round trips");
+
+        Record shortId = records.get(0);
+        shortId.id = new byte[19];
+        boolean refused = false;
+        try {
+            Record.SCHEMA.encode(shortId);
+        } catch (RuntimeException e) {
+            refused = true;
+        }
+        check(refused, "a fixed length field of the wrong length isn't encoded");
+
+        check(rejectsRecord(TRENC.encode(new byte[19], new byte[1], new byte[]{1})), "a fixed length field of the wrong length isn't decoded");
+        check(rejectsRecord(TRENC.encode(new byte[20], new byte[1], new byte[5])), "an int longer than 4 bytes isn't decoded");
+        check(rejectsRecord(TRENC.encode(new byte[20], new byte[1])), "a missing field isn't decoded");
+    }
+
+    private static boolean rejectsRecord(byte[] encoded) {
+        try {
+            Record.SCHEMA.decode(encoded);
+            return false;
+        } catch (RuntimeException e) {
+            return true;
+        }
+    }
+
+    private static boolean rejects(byte[] encoded) {
+        try {
+            TRENC.decodeSlices(encoded);
+            return false;
+        } catch (RuntimeException e) {
+            return e.getClass() == RuntimeException.class;
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        System.out.println((ok ? "ok     " : "FAILED ") + what);
+        if (!ok) throw new RuntimeException("Check failed: " + what);
+    }
+
+    private static class Record {
+        static final TRENCSchema<Record> SCHEMA = TRENCSchema.builder(Record::new)
+                .fixedBytes("id", 20, r -> r.id, (r, v) -> r.id = v)
+                .bytes("body", r -> r.body, (r, v) -> r.body = v)
+                .int32("count", r -> r.count, (r, v) -> r.count = v)
+                .build();
+
+        private byte[] id;
+        private byte[] body;
+        private int count;
+
+        private boolean equalTo(Record other) {
+            return Arrays.equals(id, other.id) && Arrays.equals(body, other.body) && count == other.count;
+        }
+    }
+}
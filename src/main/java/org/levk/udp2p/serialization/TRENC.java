@@ -1,48 +1,27 @@
 package org.levk.udp2p.serialization;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public class TRENC {
     public static final byte[] EMPTY_ELEMENT_TRENC = encode(new byte[1]);
 
     public static byte[] encode(byte[] data) {
-        try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-            byte[] prefix;
-            if (data == null) {
-                prefix = new byte[]{(byte)0x80};
-                out.write(prefix);
-            } else {
-                prefix = getLengthBytes(data.length);
-                out.write(prefix);
-                out.write(data);
-            }
-
-            return out.toByteArray();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
+        TRENCWriter out = new TRENCWriter(TRENCWriter.elementLength(data));
+        out.append(data);
+        return out.toByteArray();
     }
 
+    /* Sized exactly up front & written in one pass */
     public static byte[] encode(byte[]... data) {
-        try {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-
-            outputStream.write((byte)0x00);
-            outputStream.write(getLengthBytes(data.length));
+        TRENCWriter out = new TRENCWriter(TRENCWriter.listLength(data));
+        out.beginList(data.length);
 
-            for (byte[] subDat : data) {
-                outputStream.write(encode(subDat));
-            }
-
-            return outputStream.toByteArray();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
+        for (byte[] subDat : data) {
+            out.append(subDat);
         }
+
+        return out.toByteArray();
     }
 
     public static ENCList decode(byte[] data) {
@@ -103,8 +82,6 @@ public class TRENC {
                 elLength = fromBytes(elLengthBytes) + 127;
             }
 
-            System.out.println(elLength);
-
             /* Now that the element length is known, we can deserialize it & return
              * it in an ENCList containing 1 item. */
             byte[] item = Arrays.copyOfRange(data, offset + startPos, offset + elLength + startPos);
@@ -113,32 +90,136 @@ public class TRENC {
         }
     }
 
-    public static byte[] getLengthBytes(int i) {
-        try {
-            if (i < 1) {
-                return new byte[]{(byte) 0x80};
+    public static ENCSlice[] decodeSlices(byte[] data) {
+        return decodeSlices(ByteBuffer.wrap(data), 0, data.length);
+    }
+
+    /* Decodes the list starting at the buffer's position */
+    public static ENCSlice[] decodeSlices(ByteBuffer data) {
+        return decodeSlices(data, data.position(), data.limit());
+    }
+
+    /* Decodes the list at pos into views of the original buffer.
+     * Lengths are read arithmetically & no element is copied. */
+    static ENCSlice[] decodeSlices(ByteBuffer data, int pos, int limit) {
+        if (pos + 2 > limit || data.get(pos) != 0x00) throw new RuntimeException("Encoding is not a list.");
+
+        int count;
+        int head = data.get(pos + 1) & 0xFF;
+        if (head >= 0x80) {
+            count = head - 0x80;
+            pos += 2;
+        } else {
+            if (pos + 2 + head > limit) throw new RuntimeException("Encoding is truncated.");
+            count = readLength(data, pos + 2, head) + 127;
+            pos += 2 + head;
+        }
+
+        /* Every element takes at least one byte. A 4 byte
+         * count can also wrap negative. */
+        if (count < 0 || count > limit - pos) throw new RuntimeException("Encoding is truncated.");
+
+        ENCSlice[] out = new ENCSlice[count];
+        for (int i = 0; i < count; i++) {
+            out[i] = sliceAt(data, pos, limit);
+            pos = out[i].getEnd();
+        }
+
+        return out;
+    }
+
+    private static ENCSlice sliceAt(ByteBuffer data, int pos, int limit) {
+        if (pos >= limit) throw new RuntimeException("Encoding is truncated.");
+
+        int head = data.get(pos) & 0xFF;
+        int offset;
+        int length;
+
+        if (head >= 0x80) {
+            offset = pos + 1;
+            length = head - 0x80;
+        } else {
+            if (pos + 1 + head > limit) throw new RuntimeException("Encoding is truncated.");
+            offset = pos + 1 + head;
+            length = readLength(data, pos + 1, head) + 127;
+        }
+
+        if (length < 0 || length > limit - offset) throw new RuntimeException("Encoding is truncated.");
+
+        return new ENCSlice(data, pos, offset, length);
+    }
+
+    /* Offset just past the list at pos, or -1 if the
+     * bytes between pos & limit aren't a whole list */
+    static int listEnd(ByteBuffer data, int pos, int limit) {
+        if (pos + 2 > limit || data.get(pos) != 0x00) return -1;
+
+        int count;
+        int head = data.get(pos + 1) & 0xFF;
+        if (head >= 0x80) {
+            count = head - 0x80;
+            pos += 2;
+        } else {
+            if (head > 4 || pos + 2 + head > limit) return -1;
+            count = readLength(data, pos + 2, head) + 127;
+            pos += 2 + head;
+        }
+
+        if (count < 0) return -1;
+
+        for (int i = 0; i < count; i++) {
+            if (pos >= limit) return -1;
+
+            head = data.get(pos) & 0xFF;
+            int length;
+            if (head >= 0x80) {
+                pos += 1;
+                length = head - 0x80;
             } else {
-                byte[] out;
-
-                if (i > 127) {
-                    ByteArrayOutputStream outStrem = new ByteArrayOutputStream();
-                    outStrem.write((byte)intToBytesNoLeadZeroes(i - 127).length);
-                    outStrem.write(intToBytesNoLeadZeroes(i - 127));
-                    return outStrem.toByteArray();
-                } else {
-                    out = new byte[1];
-                    out[0] = (byte)(0x80 + i);
-                    return out;
-                }
+                if (head > 4 || pos + 1 + head > limit) return -1;
+                length = readLength(data, pos + 1, head) + 127;
+                pos += 1 + head;
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
+
+            if (length < 0 || length > limit - pos) return -1;
+            pos += length;
+        }
+
+        return pos;
+    }
+
+    private static int readLength(ByteBuffer data, int pos, int byteCount) {
+        if (byteCount > 4) throw new RuntimeException("Length prefix too long.");
+
+        int out = 0;
+        for (int i = 0; i < byteCount; i++) {
+            out = (out << 8) | (data.get(pos + i) & 0xFF);
+        }
+
+        return out;
+    }
+
+    public static byte[] getLengthBytes(int i) {
+        if (i < 1) {
+            return new byte[]{(byte) 0x80};
+        } else if (i > 127) {
+            byte[] length = intToBytesNoLeadZeroes(i - 127);
+            byte[] out = new byte[length.length + 1];
+            out[0] = (byte)length.length;
+            System.arraycopy(length, 0, out, 1, length.length);
+            return out;
+        } else {
+            return new byte[]{(byte)(0x80 + i)};
         }
     }
 
     public static int fromBytes(byte[] in) {
-        return Integer.parseUnsignedInt((new ENCItem(in)).toString(), 16);
+        int out = 0;
+        for (byte b : in) {
+            out = (out << 8) | (b & 0xFF);
+        }
+
+        return out;
     }
 
     public static byte[] intToBytesNoLeadZeroes(int val){
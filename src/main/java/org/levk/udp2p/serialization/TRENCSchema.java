@@ -0,0 +1,203 @@
+package org.levk.udp2p.serialization;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/* Declares how a type maps onto a TRENC list, field by field,
+ * using plain accessors instead of reflection. The schema is
+ * built once; encoding is sized exactly & written in one pass,
+ * decoding reads from slices of the original buffer.
+ *
+ * Example:
+ *   static final TRENCSchema<Foo> SCHEMA = TRENCSchema.builder(Foo::new)
+ *           .fixedBytes("id", 20, f -> f.id, (f, v) -> f.id = v)
+ *           .int32("count", f -> f.count, (f, v) -> f.count = v)
+ *           .build();
+ */
+public class TRENCSchema<T> {
+    private final Supplier<T> factory;
+    private final List<Field<T>> fields;
+
+    private TRENCSchema(Supplier<T> factory, List<Field<T>> fields) {
+        this.factory = factory;
+        this.fields = fields;
+    }
+
+    public static <T> Builder<T> builder(Supplier<T> factory) {
+        return new Builder<>(factory);
+    }
+
+    public int fieldCount() {
+        return fields.size();
+    }
+
+    /* Exact size of encode(value) */
+    public int encodedLength(T value) {
+        int length = TRENCWriter.listHeaderLength(fields.size());
+
+        for (Field<T> f : fields) {
+            length += f.encodedLength(value);
+        }
+
+        return length;
+    }
+
+    public byte[] encode(T value) {
+        TRENCWriter out = new TRENCWriter(encodedLength(value));
+        encode(value, out);
+        return out.toByteArray();
+    }
+
+    public void encode(T value, TRENCWriter out) {
+        out.beginList(fields.size());
+
+        for (Field<T> f : fields) {
+            f.write(value, out);
+        }
+    }
+
+    public T decode(byte[] data) {
+        T out = factory.get();
+        decodeInto(out, TRENC.decodeSlices(data));
+        return out;
+    }
+
+    public T decode(ByteBuffer data) {
+        T out = factory.get();
+        decodeInto(out, TRENC.decodeSlices(data));
+        return out;
+    }
+
+    public void decodeInto(T target, byte[] data) {
+        decodeInto(target, TRENC.decodeSlices(data));
+    }
+
+    public void decodeInto(T target, ENCSlice[] encoded) {
+        if (encoded.length != fields.size()) throw new RuntimeException("Expected " + fields.size() + " encoded elements, got " + encoded.length + ".");
+
+        for (int i = 0; i < encoded.length; i++) {
+            fields.get(i).read(target, encoded[i]);
+        }
+    }
+
+    /* Exact size of encodeList(values) */
+    public int encodedListLength(Collection<T> values) {
+        int length = TRENCWriter.listHeaderLength(values.size());
+
+        for (T v : values) {
+            length += TRENCWriter.elementLength(encodedLength(v));
+        }
+
+        return length;
+    }
+
+    /* A TRENC list whose elements are each an encoded T */
+    public byte[] encodeList(Collection<T> values) {
+        TRENCWriter out = new TRENCWriter(encodedListLength(values));
+        out.beginList(values.size());
+
+        for (T v : values) {
+            out.appendHeader(encodedLength(v));
+            encode(v, out);
+        }
+
+        return out.toByteArray();
+    }
+
+    public List<T> decodeList(byte[] data) {
+        ENCSlice[] encoded = TRENC.decodeSlices(data);
+        List<T> out = new ArrayList<>(encoded.length);
+
+        for (ENCSlice e : encoded) {
+            T value = factory.get();
+            decodeInto(value, e.getList());
+            out.add(value);
+        }
+
+        return out;
+    }
+
+    private interface Field<T> {
+        int encodedLength(T value);
+
+        void write(T value, TRENCWriter out);
+
+        void read(T target, ENCSlice in);
+    }
+
+    public static class Builder<T> {
+        private final Supplier<T> factory;
+        private final List<Field<T>> fields = new ArrayList<>();
+
+        private Builder(Supplier<T> factory) {
+            this.factory = factory;
+        }
+
+        /* A byte array of any length */
+        public Builder<T> bytes(String name, Function<T, byte[]> getter, BiConsumer<T, byte[]> setter) {
+            return fixedBytes(name, -1, getter, setter);
+        }
+
+        /* A byte array that must be exactly length bytes */
+        public Builder<T> fixedBytes(String name, int length, Function<T, byte[]> getter, BiConsumer<T, byte[]> setter) {
+            fields.add(new Field<T>() {
+                @Override
+                public int encodedLength(T value) {
+                    return TRENCWriter.elementLength(check(getter.apply(value)));
+                }
+
+                @Override
+                public void write(T value, TRENCWriter out) {
+                    out.append(check(getter.apply(value)));
+                }
+
+                @Override
+                public void read(T target, ENCSlice in) {
+                    if (length >= 0 && in.getLength() != length) throw new RuntimeException(name + " must be " + length + " bytes.");
+                    setter.accept(target, in.getBytes());
+                }
+
+                private byte[] check(byte[] v) {
+                    if (length >= 0 && (v == null || v.length != length)) throw new RuntimeException(name + " must be " + length + " bytes.");
+                    return v;
+                }
+            });
+
+            return this;
+        }
+
+        /* A 4 byte big endian int, same as ByteUtils.intToBytes */
+        public Builder<T> int32(String name, ToIntFunction<T> getter, ObjIntConsumer<T> setter) {
+            fields.add(new Field<T>() {
+                @Override
+                public int encodedLength(T value) {
+                    return TRENCWriter.elementLength(4);
+                }
+
+                @Override
+                public void write(T value, TRENCWriter out) {
+                    out.appendInt(getter.applyAsInt(value));
+                }
+
+                @Override
+                public void read(T target, ENCSlice in) {
+                    if (in.getLength() > 4) throw new RuntimeException(name + " is too long to be an int.");
+                    setter.accept(target, in.getInt());
+                }
+            });
+
+            return this;
+        }
+
+        public TRENCSchema<T> build() {
+            return new TRENCSchema<>(factory, new ArrayList<>(fields));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.levk.udp2p.serialization;
+
+import java.nio.ByteBuffer;
+
+/* Writes TRENC straight into a heap or direct ByteBuffer.
+ * Use the static length functions to size the buffer up front,
+ * then beginList & append each element in order. */
+public class TRENCWriter {
+    private final ByteBuffer out;
+
+    public TRENCWriter(ByteBuffer out) {
+        this.out = out;
+    }
+
+    /* Allocates a heap buffer of exactly the given size */
+    public TRENCWriter(int encodedLength) {
+        this(ByteBuffer.allocate(encodedLength));
+    }
+
+    public ByteBuffer getBuffer() {
+        return out;
+    }
+
+    /* The backing array of a heap buffer, for when
+     * it was sized exactly & is now full */
+    public byte[] toByteArray() {
+        if (out.hasRemaining()) throw new RuntimeException("Encoding is " + out.remaining() + " bytes short of the buffer size.");
+        return out.array();
+    }
+
+    /* Size of the length header for something of the given length */
+    public static int headerLength(int length) {
+        if (length < 128) return 1;
+
+        return 1 + byteCount(length - 127);
+    }
+
+    /* Size of an element holding dataLength bytes */
+    public static int elementLength(int dataLength) {
+        return headerLength(dataLength) + dataLength;
+    }
+
+    public static int elementLength(byte[] data) {
+        return (data == null) ? 1 : elementLength(data.length);
+    }
+
+    /* Size of a list header for count elements */
+    public static int listHeaderLength(int count) {
+        return 1 + headerLength(count);
+    }
+
+    /* Exact size of TRENC.encode(elements) */
+    public static int listLength(byte[]... elements) {
+        int length = listHeaderLength(elements.length);
+
+        for (byte[] element : elements) {
+            length += elementLength(element);
+        }
+
+        return length;
+    }
+
+    public TRENCWriter beginList(int count) {
+        out.put((byte)0x00);
+        writeHeader(count);
+        return this;
+    }
+
+    public TRENCWriter append(byte[] data) {
+        if (data == null) {
+            out.put((byte)0x80);
+            return this;
+        }
+
+        return append(data, 0, data.length);
+    }
+
+    public TRENCWriter append(byte[] data, int off, int len) {
+        writeHeader(len);
+        out.put(data, off, len);
+        return this;
+    }
+
+    /* Appends the remaining bytes of data, advancing its position */
+    public TRENCWriter append(ByteBuffer data) {
+        writeHeader(data.remaining());
+        out.put(data);
+        return this;
+    }
+
+    /* Same encoding as append(ByteUtils.intToBytes(val)) */
+    public TRENCWriter appendInt(int val) {
+        out.put((byte)(0x80 + 4));
+        out.putInt(val);
+        return this;
+    }
+
+    public TRENCWriter appendByte(byte val) {
+        out.put((byte)(0x80 + 1));
+        out.put(val);
+        return this;
+    }
+
+    /* Writes only the header for a len byte element,
+     * for when its data is written separately */
+    public TRENCWriter appendHeader(int len) {
+        writeHeader(len);
+        return this;
+    }
+
+    /* Writes the header for a len byte element & skips
+     * over its data, to be filled in later. Returns the
+     * offset in the buffer where the data goes. */
+    public int reserve(int len) {
+        writeHeader(len);
+        int offset = out.position();
+        out.position(offset + len);
+        return offset;
+    }
+
+    private void writeHeader(int length) {
+        if (length < 128) {
+            out.put((byte)(0x80 + length));
+            return;
+        }
+
+        int val = length - 127;
+        int count = byteCount(val);
+
+        out.put((byte)count);
+        for (int i = count - 1; i >= 0; i--) {
+            out.put((byte)(val >>> (8 * i)));
+        }
+    }
+
+    private static int byteCount(int val) {
+        return (39 - Integer.numberOfLeadingZeros(val)) / 8;
+    }
+}
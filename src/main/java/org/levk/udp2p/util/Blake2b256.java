@@ -0,0 +1,261 @@
+package org.levk.udp2p.util;
+
+import java.nio.ByteBuffer;
+
+/* Unkeyed BLAKE2b with a 32 byte digest (RFC 7693).
+ * Unlike the BouncyCastle MessageDigest, an instance is meant
+ * to be reset & reused, and the state can be copied so a shared
+ * prefix only has to be hashed once. Not thread safe. */
+public class Blake2b256 {
+    public static final int DIGEST_LENGTH = 32;
+    private static final int BLOCK_LENGTH = 128;
+
+    private static final long IV0 = 0x6a09e667f3bcc908L;
+    private static final long IV1 = 0xbb67ae8584caa73bL;
+    private static final long IV2 = 0x3c6ef372fe94f82bL;
+    private static final long IV3 = 0xa54ff53a5f1d36f1L;
+    private static final long IV4 = 0x510e527fade682d1L;
+    private static final long IV5 = 0x9b05688c2b3e6c1fL;
+    private static final long IV6 = 0x1f83d9abfb41bd6bL;
+    private static final long IV7 = 0x5be0cd19137e2179L;
+
+    private static final byte[][] SIGMA = {
+            {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15},
+            {14, 10, 4, 8, 9, 15, 13, 6, 1, 12, 0, 2, 11, 7, 5, 3},
+            {11, 8, 12, 0, 5, 2, 15, 13, 10, 14, 3, 6, 7, 1, 9, 4},
+            {7, 9, 3, 1, 13, 12, 11, 14, 2, 6, 5, 10, 4, 0, 15, 8},
+            {9, 0, 5, 7, 2, 4, 10, 15, 14, 1, 11, 12, 6, 8, 3, 13},
+            {2, 12, 6, 10, 0, 11, 8, 3, 4, 13, 7, 5, 15, 14, 1, 9},
+            {12, 5, 1, 15, 14, 13, 4, 10, 0, 7, 6, 3, 9, 2, 8, 11},
+            {13, 11, 7, 14, 12, 1, 3, 9, 5, 0, 15, 4, 8, 6, 2, 10},
+            {6, 15, 14, 9, 11, 3, 0, 8, 12, 2, 13, 7, 1, 4, 10, 5},
+            {10, 2, 8, 4, 7, 6, 1, 5, 15, 11, 9, 14, 3, 12, 13, 0},
+            {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15},
+            {14, 10, 4, 8, 9, 15, 13, 6, 1, 12, 0, 2, 11, 7, 5, 3}
+    };
+
+    private final long[] h = new long[8];
+    private final long[] m = new long[16];
+    private final byte[] buffer = new byte[BLOCK_LENGTH];
+
+    private int bufferPos;
+    private long counterLow;
+    private long counterHigh;
+
+    public Blake2b256() {
+        reset();
+    }
+
+    public void reset() {
+        /* Parameter block: digest length 32, no key, fanout & depth 1 */
+        h[0] = IV0 ^ 0x01010000L ^ DIGEST_LENGTH;
+        h[1] = IV1;
+        h[2] = IV2;
+        h[3] = IV3;
+        h[4] = IV4;
+        h[5] = IV5;
+        h[6] = IV6;
+        h[7] = IV7;
+
+        bufferPos = 0;
+        counterLow = 0;
+        counterHigh = 0;
+    }
+
+    /* Makes this digest's state identical to other's */
+    public void copyFrom(Blake2b256 other) {
+        System.arraycopy(other.h, 0, h, 0, 8);
+        System.arraycopy(other.buffer, 0, buffer, 0, BLOCK_LENGTH);
+        bufferPos = other.bufferPos;
+        counterLow = other.counterLow;
+        counterHigh = other.counterHigh;
+    }
+
+    public void update(byte b) {
+        if (bufferPos == BLOCK_LENGTH) {
+            incrementCounter(BLOCK_LENGTH);
+            compress(buffer, 0, false);
+            bufferPos = 0;
+        }
+
+        buffer[bufferPos++] = b;
+    }
+
+    public void update(byte[] in) {
+        update(in, 0, in.length);
+    }
+
+    public void update(byte[] in, int off, int len) {
+        if (len <= 0) return;
+
+        /* The last block must be kept back until doFinal,
+         * so only compress once more input is known to follow */
+        if (bufferPos > 0) {
+            int fill = BLOCK_LENGTH - bufferPos;
+
+            if (len <= fill) {
+                System.arraycopy(in, off, buffer, bufferPos, len);
+                bufferPos += len;
+                return;
+            }
+
+            System.arraycopy(in, off, buffer, bufferPos, fill);
+            incrementCounter(BLOCK_LENGTH);
+            compress(buffer, 0, false);
+            bufferPos = 0;
+            off += fill;
+            len -= fill;
+        }
+
+        while (len > BLOCK_LENGTH) {
+            incrementCounter(BLOCK_LENGTH);
+            compress(in, off, false);
+            off += BLOCK_LENGTH;
+            len -= BLOCK_LENGTH;
+        }
+
+        System.arraycopy(in, off, buffer, 0, len);
+        bufferPos = len;
+    }
+
+    /* Consumes the remaining bytes of in */
+    public void update(ByteBuffer in) {
+        if (in.hasArray()) {
+            update(in.array(), in.arrayOffset() + in.position(), in.remaining());
+            in.position(in.limit());
+            return;
+        }
+
+        while (in.hasRemaining()) {
+            if (bufferPos == BLOCK_LENGTH) {
+                incrementCounter(BLOCK_LENGTH);
+                compress(buffer, 0, false);
+                bufferPos = 0;
+            }
+
+            int len = Math.min(in.remaining(), BLOCK_LENGTH - bufferPos);
+            in.get(buffer, bufferPos, len);
+            bufferPos += len;
+        }
+    }
+
+    /* Writes the 32 byte digest to out at outOff & resets */
+    public void doFinal(byte[] out, int outOff) {
+        incrementCounter(bufferPos);
+
+        for (int i = bufferPos; i < BLOCK_LENGTH; i++) {
+            buffer[i] = 0;
+        }
+
+        compress(buffer, 0, true);
+
+        for (int i = 0; i < DIGEST_LENGTH / 8; i++) {
+            long w = h[i];
+            int o = outOff + i * 8;
+            out[o] = (byte)w;
+            out[o + 1] = (byte)(w >>> 8);
+            out[o + 2] = (byte)(w >>> 16);
+            out[o + 3] = (byte)(w >>> 24);
+            out[o + 4] = (byte)(w >>> 32);
+            out[o + 5] = (byte)(w >>> 40);
+            out[o + 6] = (byte)(w >>> 48);
+            out[o + 7] = (byte)(w >>> 56);
+        }
+
+        reset();
+    }
+
+    public byte[] doFinal() {
+        byte[] out = new byte[DIGEST_LENGTH];
+        doFinal(out, 0);
+        return out;
+    }
+
+    private void incrementCounter(int by) {
+        counterLow += by;
+        if (Long.compareUnsigned(counterLow, by) < 0) {
+            counterHigh++;
+        }
+    }
+
+    /* The working vector is kept in locals & G is written out
+     * inline, which lets the JIT keep the whole state in registers */
+    private void compress(byte[] block, int off, boolean last) {
+        long[] m = this.m;
+        for (int i = 0; i < 16; i++) {
+            m[i] = littleEndianLong(block, off + i * 8);
+        }
+
+        long v0 = h[0], v1 = h[1], v2 = h[2], v3 = h[3];
+        long v4 = h[4], v5 = h[5], v6 = h[6], v7 = h[7];
+        long v8 = IV0, v9 = IV1, v10 = IV2, v11 = IV3;
+        long v12 = IV4 ^ counterLow;
+        long v13 = IV5 ^ counterHigh;
+        long v14 = last ? ~IV6 : IV6;
+        long v15 = IV7;
+
+        for (int r = 0; r < 12; r++) {
+            byte[] s = SIGMA[r];
+
+            v0 += v4 + m[s[0]]; v12 = Long.rotateRight(v12 ^ v0, 32);
+            v8 += v12; v4 = Long.rotateRight(v4 ^ v8, 24);
+            v0 += v4 + m[s[1]]; v12 = Long.rotateRight(v12 ^ v0, 16);
+            v8 += v12; v4 = Long.rotateRight(v4 ^ v8, 63);
+
+            v1 += v5 + m[s[2]]; v13 = Long.rotateRight(v13 ^ v1, 32);
+            v9 += v13; v5 = Long.rotateRight(v5 ^ v9, 24);
+            v1 += v5 + m[s[3]]; v13 = Long.rotateRight(v13 ^ v1, 16);
+            v9 += v13; v5 = Long.rotateRight(v5 ^ v9, 63);
+
+            v2 += v6 + m[s[4]]; v14 = Long.rotateRight(v14 ^ v2, 32);
+            v10 += v14; v6 = Long.rotateRight(v6 ^ v10, 24);
+            v2 += v6 + m[s[5]]; v14 = Long.rotateRight(v14 ^ v2, 16);
+            v10 += v14; v6 = Long.rotateRight(v6 ^ v10, 63);
+
+            v3 += v7 + m[s[6]]; v15 = Long.rotateRight(v15 ^ v3, 32);
+            v11 += v15; v7 = Long.rotateRight(v7 ^ v11, 24);
+            v3 += v7 + m[s[7]]; v15 = Long.rotateRight(v15 ^ v3, 16);
+            v11 += v15; v7 = Long.rotateRight(v7 ^ v11, 63);
+
+            v0 += v5 + m[s[8]]; v15 = Long.rotateRight(v15 ^ v0, 32);
+            v10 += v15; v5 = Long.rotateRight(v5 ^ v10, 24);
+            v0 += v5 + m[s[9]]; v15 = Long.rotateRight(v15 ^ v0, 16);
+            v10 += v15; v5 = Long.rotateRight(v5 ^ v10, 63);
+
+            v1 += v6 + m[s[10]]; v12 = Long.rotateRight(v12 ^ v1, 32);
+            v11 += v12; v6 = Long.rotateRight(v6 ^ v11, 24);
+            v1 += v6 + m[s[11]]; v12 = Long.rotateRight(v12 ^ v1, 16);
+            v11 += v12; v6 = Long.rotateRight(v6 ^ v11, 63);
+
+            v2 += v7 + m[s[12]]; v13 = Long.rotateRight(v13 ^ v2, 32);
+            v8 += v13; v7 = Long.rotateRight(v7 ^ v8, 24);
+            v2 += v7 + m[s[13]]; v13 = Long.rotateRight(v13 ^ v2, 16);
+            v8 += v13; v7 = Long.rotateRight(v7 ^ v8, 63);
+
+            v3 += v4 + m[s[14]]; v14 = Long.rotateRight(v14 ^ v3, 32);
+            v9 += v14; v4 = Long.rotateRight(v4 ^ v9, 24);
+            v3 += v4 + m[s[15]]; v14 = Long.rotateRight(v14 ^ v3, 16);
+            v9 += v14; v4 = Long.rotateRight(v4 ^ v9, 63);
+        }
+
+        h[0] ^= v0 ^ v8;
+        h[1] ^= v1 ^ v9;
+        h[2] ^= v2 ^ v10;
+        h[3] ^= v3 ^ v11;
+        h[4] ^= v4 ^ v12;
+        h[5] ^= v5 ^ v13;
+        h[6] ^= v6 ^ v14;
+        h[7] ^= v7 ^ v15;
+    }
+
+    private static long littleEndianLong(byte[] b, int off) {
+        return (b[off] & 0xFFL)
+                | (b[off + 1] & 0xFFL) << 8
+                | (b[off + 2] & 0xFFL) << 16
+                | (b[off + 3] & 0xFFL) << 24
+                | (b[off + 4] & 0xFFL) << 32
+                | (b[off + 5] & 0xFFL) << 40
+                | (b[off + 6] & 0xFFL) << 48
+                | (b[off + 7] & 0xFFL) << 56;
+    }
+}
@@ -0,0 +1,68 @@
+package org.levk.udp2p.util;
+
+import org.bouncycastle.jcajce.provider.digest.Blake2b;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/* Compares the Blake2b256 core against the BouncyCastle
+ * digest on packet sized & larger inputs. Run as a main. */
+public class HashBenchmark {
+    private static final int[] SIZES = {0, 1, 127, 128, 129, 1024, 65536};
+    private static final int ROUNDS = 200000;
+
+    public static void main(String[] args) {
+        SecureRandom rand = new SecureRandom();
+
+        /* Check against BouncyCastle before timing anything */
+        for (int size : SIZES) {
+            byte[] data = new byte[size];
+            rand.nextBytes(data);
+
+            byte[] expected = new Blake2b.Blake2b256().digest(data);
+            if (!Arrays.equals(expected, HashUtil.blake2(data))) {
+                throw new RuntimeException("Digest mismatch at length " + size);
+            }
+        }
+
+        for (int size : new int[]{64, 1024, 16384}) {
+            byte[] data = new byte[size];
+            rand.nextBytes(data);
+            int rounds = Math.max(1000, ROUNDS / Math.max(1, size / 64));
+
+            /* Warm up both paths */
+            runBouncy(data, rounds);
+            runLocal(data, rounds);
+
+            long start = System.nanoTime();
+            runBouncy(data, rounds);
+            long bouncy = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            runLocal(data, rounds);
+            long local = System.nanoTime() - start;
+
+            System.out.println(size + " bytes: BouncyCastle " + (bouncy / rounds) + " ns/op, HashUtil " + (local / rounds) + " ns/op");
+        }
+    }
+
+    private static int runBouncy(byte[] data, int rounds) {
+        int acc = 0;
+        for (int i = 0; i < rounds; i++) {
+            MessageDigest md = new Blake2b.Blake2b256();
+            acc += md.digest(data)[0];
+        }
+        return acc;
+    }
+
+    private static int runLocal(byte[] data, int rounds) {
+        int acc = 0;
+        byte[] out = new byte[Blake2b256.DIGEST_LENGTH];
+        for (int i = 0; i < rounds; i++) {
+            HashUtil.blake2(data, 0, data.length, out, 0);
+            acc += out[0];
+        }
+        return acc;
+    }
+}
@@ -1,15 +1,34 @@
 package org.levk.udp2p.util;
 
-import org.bouncycastle.jcajce.provider.digest.Blake2b;
 import org.bouncycastle.jcajce.provider.digest.Keccak;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
-import java.util.Arrays;
 
 public class HashUtil {
+    /* One reusable digest & scratch output per thread, so
+     * hashing on the packet path doesn't allocate state */
+    private static final ThreadLocal<Blake2b256> digest = ThreadLocal.withInitial(Blake2b256::new);
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[Blake2b256.DIGEST_LENGTH]);
+
     public static byte[] blake2(byte[] input) {
-        MessageDigest md = new Blake2b.Blake2b256();
-        return md.digest(input);
+        byte[] out = new byte[Blake2b256.DIGEST_LENGTH];
+        blake2(input, 0, input.length, out, 0);
+        return out;
+    }
+
+    /* Writes the 32 byte hash of input[off, off + len) to out at outOff */
+    public static void blake2(byte[] input, int off, int len, byte[] out, int outOff) {
+        Blake2b256 md = digest();
+        md.update(input, off, len);
+        md.doFinal(out, outOff);
+    }
+
+    /* Hashes the remaining bytes of input, advancing its position */
+    public static void blake2(ByteBuffer input, byte[] out, int outOff) {
+        Blake2b256 md = digest();
+        md.update(input);
+        md.doFinal(out, outOff);
     }
 
     public static byte[] sha3(byte[] input) {
@@ -18,12 +37,43 @@ public class HashUtil {
     }
 
     public static byte[] blake2omit12(byte[] input) {
-        byte[] hash = blake2(input);
-        return Arrays.copyOfRange(hash, 12, hash.length);
+        byte[] out = new byte[20];
+        blake2omit12(input, 0, input.length, out, 0);
+        return out;
+    }
+
+    /* Writes the last 20 bytes of the hash to out at outOff */
+    public static void blake2omit12(byte[] input, int off, int len, byte[] out, int outOff) {
+        byte[] hash = scratch.get();
+        blake2(input, off, len, hash, 0);
+        System.arraycopy(hash, 12, out, outOff, 20);
     }
 
     public static byte[] blake2ECC(byte[] input) {
-        byte[] hash = blake2(input);
-        return Arrays.copyOfRange(hash, 28, hash.length);
+        byte[] out = new byte[4];
+        blake2ECC(input, 0, input.length, out, 0);
+        return out;
+    }
+
+    /* Writes the last 4 bytes of the hash to out at outOff */
+    public static void blake2ECC(byte[] input, int off, int len, byte[] out, int outOff) {
+        byte[] hash = scratch.get();
+        blake2(input, off, len, hash, 0);
+        System.arraycopy(hash, 28, out, outOff, 4);
+    }
+
+    public static void blake2ECC(ByteBuffer input, byte[] out, int outOff) {
+        byte[] hash = scratch.get();
+        blake2(input, hash, 0);
+        System.arraycopy(hash, 28, out, outOff, 4);
+    }
+
+    /* The calling thread's digest, reset & ready for
+     * streaming use. Must be finished with doFinal
+     * before any other HashUtil call on this thread. */
+    public static Blake2b256 digest() {
+        Blake2b256 md = digest.get();
+        md.reset();
+        return md;
     }
 }
@@ -0,0 +1,182 @@
+package org.levk.udp2p.util;
+
+import java.util.Arrays;
+
+/* Systematic Reed-Solomon erasure code over GF(2^8).
+ * The first dataShards shards are the data itself, the
+ * parity shards are rows of a Cauchy matrix applied to them.
+ * Any dataShards of the dataShards + parityShards shards
+ * are enough to rebuild the data. All shards must be the
+ * same length. */
+public class ReedSolomon {
+    public static final int MAX_SHARDS = 256;
+
+    /* x^8 + x^4 + x^3 + x^2 + 1 */
+    private static final int POLYNOMIAL = 0x11D;
+
+    private static final byte[] EXP = new byte[510];
+    private static final int[] LOG = new int[256];
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte)x;
+            EXP[i + 255] = (byte)x;
+            LOG[x] = i;
+
+            x <<= 1;
+            if (x >= 256) x ^= POLYNOMIAL;
+        }
+
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+
+    /* parityShards x dataShards */
+    private final byte[][] parityRows;
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0) throw new IllegalArgumentException("Need at least one data shard.");
+        if (dataShards + parityShards > MAX_SHARDS) throw new IllegalArgumentException("At most " + MAX_SHARDS + " shards in total.");
+
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+
+        /* Cauchy rows 1 / (x_i + y_j) with x_i = dataShards + i & y_j = j.
+         * Stacked under the identity, every square submatrix is invertible. */
+        this.parityRows = new byte[parityShards][dataShards];
+        for (int i = 0; i < parityShards; i++) {
+            for (int j = 0; j < dataShards; j++) {
+                parityRows[i][j] = inverse((dataShards + i) ^ j);
+            }
+        }
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    /* Fills shards[dataShards, dataShards + parityShards) from the data shards */
+    public void encodeParity(byte[][] shards, int shardLength) {
+        for (int i = 0; i < parityShards; i++) {
+            byte[] out = shards[dataShards + i];
+            Arrays.fill(out, 0, shardLength, (byte)0);
+
+            for (int j = 0; j < dataShards; j++) {
+                mulAdd(parityRows[i][j], shards[j], out, shardLength);
+            }
+        }
+    }
+
+    /* Rebuilds any missing data shards in place. present[i] says
+     * whether shards[i] holds valid data; missing data shards must
+     * already be allocated. Parity shards are not rebuilt. */
+    public void reconstruct(byte[][] shards, boolean[] present, int shardLength) {
+        boolean complete = true;
+        for (int i = 0; i < dataShards; i++) {
+            if (!present[i]) complete = false;
+        }
+        if (complete) return;
+
+        /* Pick the first dataShards shards that arrived */
+        int[] rows = new int[dataShards];
+        int found = 0;
+        for (int i = 0; i < dataShards + parityShards && found < dataShards; i++) {
+            if (present[i]) rows[found++] = i;
+        }
+
+        if (found < dataShards) throw new RuntimeException("Need " + dataShards + " shards to reconstruct, have " + found + ".");
+
+        /* The generator rows for those shards, then invert:
+         * data = inverse * received */
+        byte[][] matrix = new byte[dataShards][dataShards];
+        for (int r = 0; r < dataShards; r++) {
+            if (rows[r] < dataShards) {
+                matrix[r][rows[r]] = 1;
+            } else {
+                System.arraycopy(parityRows[rows[r] - dataShards], 0, matrix[r], 0, dataShards);
+            }
+        }
+
+        byte[][] decode = invert(matrix);
+
+        for (int i = 0; i < dataShards; i++) {
+            if (present[i]) continue;
+
+            byte[] out = shards[i];
+            Arrays.fill(out, 0, shardLength, (byte)0);
+
+            for (int r = 0; r < dataShards; r++) {
+                mulAdd(decode[i][r], shards[rows[r]], out, shardLength);
+            }
+        }
+    }
+
+    /* out ^= c * in */
+    private static void mulAdd(byte c, byte[] in, byte[] out, int length) {
+        if (c == 0) return;
+
+        byte[] table = MUL[c & 0xFF];
+        for (int i = 0; i < length; i++) {
+            out[i] ^= table[in[i] & 0xFF];
+        }
+    }
+
+    private static byte inverse(int a) {
+        if (a == 0) throw new ArithmeticException("Zero has no inverse.");
+        return EXP[255 - LOG[a]];
+    }
+
+    /* Gauss-Jordan elimination over GF(2^8) */
+    private static byte[][] invert(byte[][] matrix) {
+        int n = matrix.length;
+        byte[][] work = new byte[n][2 * n];
+
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(matrix[i], 0, work[i], 0, n);
+            work[i][n + i] = 1;
+        }
+
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && work[pivot][col] == 0) pivot++;
+            if (pivot == n) throw new RuntimeException("Matrix is singular.");
+
+            byte[] temp = work[pivot];
+            work[pivot] = work[col];
+            work[col] = temp;
+
+            byte[] scale = MUL[inverse(work[col][col] & 0xFF) & 0xFF];
+            for (int j = 0; j < 2 * n; j++) {
+                work[col][j] = scale[work[col][j] & 0xFF];
+            }
+
+            for (int row = 0; row < n; row++) {
+                if (row == col || work[row][col] == 0) continue;
+
+                byte[] factor = MUL[work[row][col] & 0xFF];
+                for (int j = 0; j < 2 * n; j++) {
+                    work[row][j] ^= factor[work[col][j] & 0xFF];
+                }
+            }
+        }
+
+        byte[][] out = new byte[n][n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(work[i], n, out[i], 0, n);
+        }
+
+        return out;
+    }
+}